@@ -0,0 +1,39 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import engine.SQLiteStore;
+
+/**
+ * Shared fixture helpers for the benchmark suites.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * @param storage {@code memory} for a private in-memory SQLite database,
+     *                {@code file} for a WAL database file under {@code dir}
+     */
+    static SQLiteStore openStore(String storage, Path dir) throws SQLException {
+        return switch (storage) {
+            case "memory" -> new SQLiteStore("jdbc:sqlite::memory:");
+            case "file" -> new SQLiteStore("jdbc:sqlite:" + dir.resolve("bench.db"));
+            default -> throw new IllegalArgumentException("Unknown storage: " + storage);
+        };
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
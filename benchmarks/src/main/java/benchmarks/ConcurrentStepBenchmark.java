@@ -0,0 +1,82 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import engine.DurableContext;
+import engine.SQLiteStore;
+
+/**
+ * Steps from N threads, each driving its own workflow, against one shared
+ * store. Shows how far group commit lets throughput scale past a single
+ * writer. Change the thread count with {@code -t}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ConcurrentStepBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SharedStore {
+
+        @Param({ "memory", "file" })
+        public String storage;
+
+        Path dir;
+        SQLiteStore store;
+        final AtomicInteger workflows = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            dir = Files.createTempDirectory("concurrent-bench");
+            store = Benchmarks.openStore(storage, dir);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            store.close();
+            Benchmarks.deleteRecursively(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Workflow {
+
+        DurableContext ctx;
+
+        @Setup(Level.Iteration)
+        public void setUp(SharedStore shared) throws Exception {
+            ctx = new DurableContext("wf-" + shared.workflows.incrementAndGet(), shared.store);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            ctx.close();
+        }
+    }
+
+    @Benchmark
+    public String concurrentSteps(Workflow workflow) throws Exception {
+        return workflow.ctx.step(() -> "result");
+    }
+}
@@ -0,0 +1,72 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import engine.DurableContext;
+import engine.SQLiteStore;
+import engine.SQLiteStore.Durability;
+
+/**
+ * First execution of {@link DurableContext#step} on a WAL file under each
+ * {@link Durability} level.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DurabilityBenchmark {
+
+    @Param({ "FSYNC_EACH_BATCH", "WAL_NORMAL", "BUFFERED" })
+    public Durability durability;
+
+    private Path dir;
+    private SQLiteStore store;
+    private DurableContext ctx;
+    private int iteration;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("durability-bench");
+        store = new SQLiteStore("jdbc:sqlite:" + dir.resolve("bench.db"), durability);
+    }
+
+    // Fresh workflow per iteration so the replay map does not grow without bound
+    @Setup(Level.Iteration)
+    public void newWorkflow() throws Exception {
+        ctx = new DurableContext("wf-" + iteration++, store);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeWorkflow() {
+        ctx.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        store.close();
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public String firstExecution() throws Exception {
+        return ctx.step(() -> "result");
+    }
+}
@@ -0,0 +1,104 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import engine.SQLiteStore;
+import engine.StepRecord;
+import engine.StepStatus;
+import engine.WorkflowRuntime;
+
+/**
+ * Crash recovery throughput in workflows per second. Each invocation starts
+ * from a database left behind by a crashed worker: {@value #WORKFLOWS}
+ * instances RUNNING with expired leases, each with two completed steps. It
+ * then opens the store, lets the workers claim every instance, and waits
+ * until all have replayed and finished their third step.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecoveryBenchmark {
+
+    static final int WORKFLOWS = 1000;
+
+    // Instances claimed per UPDATE ... RETURNING
+    @Param({ "1", "64" })
+    public int batchSize;
+
+    private Path dir;
+    private String url;
+
+    @Setup(Level.Invocation)
+    public void crash() throws Exception {
+        dir = Files.createTempDirectory("recovery-bench");
+        url = "jdbc:sqlite:" + dir.resolve("bench.db");
+        try (SQLiteStore store = new SQLiteStore(url);
+             ExecutorService seeders = Executors.newVirtualThreadPerTaskExecutor()) {
+            long abandoned = System.currentTimeMillis() - 1;
+            List<StepRecord> steps = new ArrayList<>();
+            List<Future<?>> rows = new ArrayList<>();
+            for (int i = 0; i < WORKFLOWS; i++) {
+                String workflowId = "wf-" + i;
+                steps.add(new StepRecord(workflowId, "step-1", StepStatus.COMPLETED.name(), "1", abandoned));
+                steps.add(new StepRecord(workflowId, "step-2", StepStatus.COMPLETED.name(), "2", abandoned));
+                // Concurrent writes share group commits, which keeps the setup short
+                rows.add(seeders.submit(() -> {
+                    store.startWorkflow(workflowId, "recover", "crashed-worker", abandoned);
+                    return null;
+                }));
+            }
+            store.batch(steps);
+            for (Future<?> row : rows) {
+                row.get();
+            }
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws Exception {
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORKFLOWS)
+    public long recover() throws Exception {
+        try (SQLiteStore store = new SQLiteStore(url);
+             WorkflowRuntime runtime = new WorkflowRuntime(store)) {
+            runtime.register("recover", ctx -> {
+                ctx.step(() -> 1);
+                ctx.step(() -> 2);
+                ctx.step(() -> 3);
+            });
+            runtime.startWorkers(256, batchSize);
+            while (runtime.claimedCount() < WORKFLOWS || runtime.runningCount() > 0) {
+                Thread.onSpinWait();
+            }
+            return runtime.claimedCount();
+        }
+    }
+}
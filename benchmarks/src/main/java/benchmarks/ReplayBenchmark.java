@@ -0,0 +1,99 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import engine.DurableContext;
+import engine.SQLiteStore;
+
+/**
+ * Resuming a workflow whose steps are all completed: history preload plus
+ * replay of every step. One op is one whole resume. {@code resumeFromSnapshot}
+ * resumes the same history from a snapshot taken every
+ * {@value #SNAPSHOT_INTERVAL} steps, replaying only the steps after the last.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplayBenchmark {
+
+    static final int SNAPSHOT_INTERVAL = 64;
+
+    @Param({ "memory", "file" })
+    public String storage;
+
+    @Param({ "100", "1000" })
+    public int steps;
+
+    private Path dir;
+    private SQLiteStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("replay-bench");
+        store = Benchmarks.openStore(storage, dir);
+        try (DurableContext ctx = new DurableContext("wf-replay", store)) {
+            for (int i = 0; i < steps; i++) {
+                int value = i;
+                ctx.step(() -> "result-" + value);
+            }
+        }
+        try (DurableContext ctx = new DurableContext("wf-snapshot", store)) {
+            for (int i = 0; i < steps; i++) {
+                int value = i;
+                ctx.step(() -> "result-" + value);
+                if ((i + 1) % SNAPSHOT_INTERVAL == 0) {
+                    ctx.snapshot(i + 1);
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        store.close();
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void resume(Blackhole bh) throws Exception {
+        try (DurableContext ctx = new DurableContext("wf-replay", store)) {
+            for (int i = 0; i < steps; i++) {
+                bh.consume(ctx.step(() -> {
+                    throw new IllegalStateException("completed step re-executed");
+                }));
+            }
+        }
+    }
+
+    @Benchmark
+    public void resumeFromSnapshot(Blackhole bh) throws Exception {
+        try (DurableContext ctx = new DurableContext("wf-snapshot", store)) {
+            Integer restored = ctx.restore(Integer.class);
+            for (int i = restored == null ? 0 : restored; i < steps; i++) {
+                bh.consume(ctx.step(() -> {
+                    throw new IllegalStateException("completed step re-executed");
+                }));
+            }
+        }
+    }
+}
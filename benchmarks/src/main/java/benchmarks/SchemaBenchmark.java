@@ -0,0 +1,167 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import engine.SQLiteStore;
+import engine.StepCodecs;
+import engine.StepRecord;
+import engine.StepStatus;
+
+/**
+ * The original TEXT-keyed steps table against the compact integer-keyed
+ * {@code WITHOUT ROWID} layout of {@link SQLiteStore}, on the same rows.
+ * Both are queried over a plain connection, so only the layout differs.
+ * Setup prints each database's size after a checkpoint.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchemaBenchmark {
+
+    private static final int WORKFLOWS = 2_000;
+    private static final int STEPS = 25;
+
+    private static final String TEXT_STEP =
+            "SELECT status, output, codec, updated_at FROM steps WHERE workflow_id=? AND step_id=?";
+    private static final String TEXT_HISTORY =
+            "SELECT step_id, status, output, codec, updated_at FROM steps WHERE workflow_id=?";
+    private static final String COMPACT_STEP =
+            "SELECT status, output, codec, updated_at FROM steps " +
+            "WHERE wf=(SELECT id FROM workflow_keys WHERE workflow_id=?) " +
+            "AND step=(SELECT id FROM step_keys WHERE step_id=?)";
+    private static final String COMPACT_HISTORY =
+            "SELECT k.step_id, s.status, s.output, s.codec, s.updated_at FROM steps s " +
+            "JOIN step_keys k ON k.id=s.step WHERE s.wf=(SELECT id FROM workflow_keys WHERE workflow_id=?)";
+
+    @Param({ "text", "compact" })
+    public String layout;
+
+    private Path dir;
+    private Connection connection;
+    private PreparedStatement step;
+    private PreparedStatement history;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("schema-bench");
+        Path file = dir.resolve("bench.db");
+        String url = "jdbc:sqlite:" + file;
+        if (layout.equals("text")) {
+            populateText(url);
+        } else {
+            populateCompact(url);
+        }
+        connection = DriverManager.getConnection(url);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+        }
+        System.out.printf("%n%s layout: %,d bytes for %,d steps%n", layout, Files.size(file), WORKFLOWS * STEPS);
+        boolean text = layout.equals("text");
+        step = connection.prepareStatement(text ? TEXT_STEP : COMPACT_STEP);
+        history = connection.prepareStatement(text ? TEXT_HISTORY : COMPACT_HISTORY);
+    }
+
+    // Same DDL as SQLiteStore used before the compact layout
+    private static void populateText(String url) throws Exception {
+        try (Connection raw = DriverManager.getConnection(url);
+             Statement stmt = raw.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("CREATE TABLE steps (workflow_id TEXT, step_id TEXT, status TEXT, output BLOB, " +
+                         "updated_at INTEGER, codec INTEGER, owner TEXT, lease_expires_at INTEGER, attempts INTEGER, " +
+                         "last_error TEXT, version INTEGER NOT NULL DEFAULT 0, PRIMARY KEY (workflow_id, step_id))");
+            raw.setAutoCommit(false);
+            try (PreparedStatement ps = raw.prepareStatement(
+                    "INSERT INTO steps (workflow_id, step_id, status, output, updated_at, codec, attempts, version) " +
+                    "VALUES (?, ?, 'COMPLETED', ?, ?, 0, 0, 2)")) {
+                for (int w = 0; w < WORKFLOWS; w++) {
+                    for (int s = 1; s <= STEPS; s++) {
+                        ps.setString(1, workflowId(w));
+                        ps.setString(2, "step-" + s);
+                        ps.setBytes(3, ("\"output-" + s + "\"").getBytes());
+                        ps.setLong(4, System.currentTimeMillis());
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+            }
+            raw.commit();
+        }
+    }
+
+    private static void populateCompact(String url) throws Exception {
+        try (SQLiteStore store = new SQLiteStore(url)) {
+            for (int w = 0; w < WORKFLOWS; w++) {
+                List<StepRecord> records = new ArrayList<>(STEPS);
+                for (int s = 1; s <= STEPS; s++) {
+                    records.add(new StepRecord(workflowId(w), "step-" + s, StepStatus.COMPLETED.name(),
+                            ("\"output-" + s + "\"").getBytes(), StepCodecs.JSON, System.currentTimeMillis(),
+                            null, 0, 0, null, 2));
+                }
+                store.batch(records);
+            }
+        }
+    }
+
+    // UUID-shaped, like the IDs most callers use
+    private static String workflowId(int n) {
+        return String.format("00000000-0000-4000-8000-%012d", n);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        step.close();
+        history.close();
+        connection.close();
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void pointLookup(Blackhole bh) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        step.setString(1, workflowId(random.nextInt(WORKFLOWS)));
+        step.setString(2, "step-" + (1 + random.nextInt(STEPS)));
+        try (ResultSet rs = step.executeQuery()) {
+            if (rs.next()) {
+                bh.consume(rs.getBytes(2));
+            }
+        }
+    }
+
+    @Benchmark
+    public void historyScan(Blackhole bh) throws Exception {
+        history.setString(1, workflowId(ThreadLocalRandom.current().nextInt(WORKFLOWS)));
+        try (ResultSet rs = history.executeQuery()) {
+            while (rs.next()) {
+                bh.consume(rs.getBytes(3));
+            }
+        }
+    }
+}
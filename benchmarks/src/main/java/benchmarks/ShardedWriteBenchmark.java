@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import engine.ShardedStore;
+
+/**
+ * Write throughput of a {@link ShardedStore} over WAL files as the shard
+ * count grows: one op is the in-progress insert plus the completed update of
+ * one step, each step in its own workflow so writes spread over all shards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShardedWriteBenchmark {
+
+    @Param({ "1", "2", "4", "8" })
+    public int shards;
+
+    private Path dir;
+    private ShardedStore store;
+    private final AtomicLong steps = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("sharded-bench");
+        store = new ShardedStore(dir, shards);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        store.close();
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void writers() throws Exception {
+        String workflowId = "wf-" + steps.incrementAndGet();
+        store.insertInProgress(workflowId, "step-1");
+        store.markCompleted(workflowId, "step-1", "\"result\"");
+    }
+}
@@ -0,0 +1,98 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import engine.SQLiteStore;
+import engine.StepRecord;
+
+/**
+ * Per-step lookup cost with cached prepared statements and positional column
+ * access ({@link SQLiteStore#getStep}) against the previous approach: prepare
+ * per call, {@code SELECT *} and lookup by column name.
+ *
+ * Run with {@code -prof gc} to compare allocation per lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatementCacheBenchmark {
+
+    private static final int STEPS = 1_000;
+
+    private Path dir;
+    private SQLiteStore store;
+    private Connection raw;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("stmt-bench");
+        String url = "jdbc:sqlite:" + dir.resolve("bench.db");
+        store = new SQLiteStore(url, 1, SQLiteStore.DEFAULT_MAX_BATCH_SIZE, SQLiteStore.DEFAULT_MAX_LINGER_MS);
+        for (int i = 0; i < STEPS; i++) {
+            store.insertInProgress("wf-bench", "step-" + i);
+            store.markCompleted("wf-bench", "step-" + i, "\"output-" + i + "\"");
+        }
+        raw = DriverManager.getConnection(url);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        raw.close();
+        store.close();
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    private String nextStepId() {
+        next = (next + 1) % STEPS;
+        return "step-" + next;
+    }
+
+    @Benchmark
+    public StepRecord cachedStatement() throws Exception {
+        return store.getStep("wf-bench", nextStepId());
+    }
+
+    @Benchmark
+    public void prepareEveryCall(Blackhole bh) throws Exception {
+        String stepId = nextStepId();
+        try (PreparedStatement ps = raw.prepareStatement("SELECT * FROM steps " +
+                "WHERE wf=(SELECT id FROM workflow_keys WHERE workflow_id=?) " +
+                "AND step=(SELECT id FROM step_keys WHERE step_id=?)")) {
+            ps.setString(1, "wf-bench");
+            ps.setString(2, stepId);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                bh.consume(new StepRecord(
+                        "wf-bench",
+                        stepId,
+                        String.valueOf(rs.getInt("status")),
+                        rs.getString("output"),
+                        rs.getLong("updated_at")));
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import engine.DurableContext;
+import engine.SQLiteStore;
+
+/**
+ * First execution of {@link DurableContext#step}: in-progress checkpoint,
+ * action, serialization, completed checkpoint. {@code localStep} runs the
+ * same workload with only the completed checkpoint.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StepBenchmark {
+
+    @Param({ "memory", "file" })
+    public String storage;
+
+    private Path dir;
+    private SQLiteStore store;
+    private DurableContext ctx;
+    private int iteration;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("step-bench");
+        store = Benchmarks.openStore(storage, dir);
+    }
+
+    // Fresh workflow per iteration so the replay map does not grow without bound
+    @Setup(Level.Iteration)
+    public void newWorkflow() throws Exception {
+        ctx = new DurableContext("wf-" + iteration++, store);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeWorkflow() {
+        ctx.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        store.close();
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public String firstExecution() throws Exception {
+        return ctx.step(() -> "result");
+    }
+
+    @Benchmark
+    public String localStep() throws Exception {
+        return ctx.localStep(() -> "result");
+    }
+}
@@ -0,0 +1,73 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import engine.SQLiteStore;
+
+/**
+ * Raw {@link SQLiteStore} write throughput without the engine on top: one op
+ * is the in-progress insert plus the completed update of one step.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreWriteBenchmark {
+
+    @Param({ "memory", "file" })
+    public String storage;
+
+    private Path dir;
+    private SQLiteStore store;
+    private final AtomicLong steps = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("write-bench");
+        store = Benchmarks.openStore(storage, dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        store.close();
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    private void writeStep() throws Exception {
+        String stepId = "step-" + steps.incrementAndGet();
+        store.insertInProgress("wf-write", stepId);
+        store.markCompleted("wf-write", stepId, "\"result\"");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void singleWriter() throws Exception {
+        writeStep();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void eightWriters() throws Exception {
+        writeStep();
+    }
+}
@@ -1,12 +1,13 @@
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import engine.DurableContext;
 import engine.SQLiteStore;
+import engine.WorkflowRuntime;
 import examples.onboarding.EmployeeOnboardingWorkflow;
 
 public class App {
@@ -14,11 +15,13 @@ public class App {
     private static final Logger log = LoggerFactory.getLogger(App.class);
 
     public static void main(String[] args) throws Exception {
-        Connection connection = DriverManager.getConnection("jdbc:sqlite:durable.db");
-        SQLiteStore store = new SQLiteStore(connection);
+        SQLiteStore store = new SQLiteStore("jdbc:sqlite:durable.db");
 
-        DurableContext ctx = new DurableContext("wf-001", store);
-        EmployeeOnboardingWorkflow workflow = new EmployeeOnboardingWorkflow();
+        WorkflowRuntime runtime = new WorkflowRuntime(store);
+        runtime.register("employee-onboarding", new EmployeeOnboardingWorkflow());
+
+        // Workflow IDs to start or resume, e.g. mvn exec:java -Dexec.args="wf-001 wf-002"
+        String[] workflowIds = args.length > 0 ? args : new String[] { "wf-001" };
 
         Scanner scanner = new Scanner(System.in);
         log.info("Type 'exit' anytime to simulate a crash. Press Enter to continue.");
@@ -28,9 +31,17 @@ public class App {
             System.exit(0);
         }
 
-        workflow.run(ctx);
+        // Resumes whatever an earlier, crashed run left behind
+        runtime.startWorkers(64, 32);
+
+        List<CompletableFuture<Void>> runs = new ArrayList<>();
+        for (String workflowId : workflowIds) {
+            runs.add(runtime.start("employee-onboarding", workflowId));
+        }
+        CompletableFuture.allOf(runs.toArray(CompletableFuture[]::new)).join();
 
-        log.info("You can re-run this program to resume workflow if interrupted.");
-        connection.close();
+        log.info("If interrupted, re-running this program resumes every unfinished workflow.");
+        runtime.close();
+        store.close();
     }
 }
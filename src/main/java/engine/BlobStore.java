@@ -0,0 +1,112 @@
+package engine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Local content-addressed store for large step outputs.
+ *
+ * Blobs are named by the SHA-256 of their bytes and fanned out over
+ * subdirectories by the first two hex digits. Identical outputs are stored
+ * once. A blob is written to a temp file, forced to disk and atomically
+ * renamed, then its directory is forced so the rename is durable too. A
+ * reference can never point at a partial or missing blob once the row
+ * holding it has committed.
+ */
+public class BlobStore {
+
+    public static final int DEFAULT_OFFLOAD_THRESHOLD = 1024 * 1024;
+
+    private static final boolean WINDOWS = System.getProperty("os.name").startsWith("Windows");
+
+    private final Path directory;
+
+    public BlobStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Stores the bytes if not already present and returns their hash.
+     */
+    public String put(byte[] data) throws IOException {
+        String hash = hash(data);
+        Path target = path(hash);
+        if (Files.exists(target)) {
+            return hash;
+        }
+        Path parent = target.getParent();
+        if (!Files.isDirectory(parent)) {
+            Files.createDirectories(parent);
+            forceDirectory(directory);
+        }
+        Path temp = Files.createTempFile(target.getParent(), hash, ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // The rename lives in the directory: without this a crash can lose the blob after the row commits
+        forceDirectory(parent);
+        return hash;
+    }
+
+    public InputStream open(String hash) throws IOException {
+        return Files.newInputStream(path(hash));
+    }
+
+    public boolean contains(String hash) {
+        return Files.exists(path(hash));
+    }
+
+    /**
+     * Moves a completed record's payload into the store and returns a record
+     * whose payload is the blob reference.
+     */
+    StepRecord offload(StepRecord record) throws IOException {
+        String hash = put(record.getPayload());
+        return new StepRecord(record.getWorkflowId(), record.getStepId(), record.getStatus(),
+                hash.getBytes(StandardCharsets.US_ASCII), record.getCodec() | StepCodecs.BLOB_REFERENCE,
+                record.getUpdatedAt());
+    }
+
+    // Raw (still encoded, possibly compressed) payload stream of a reference record
+    InputStream openPayload(StepRecord record) throws IOException {
+        return open(new String(record.getPayload(), StandardCharsets.US_ASCII));
+    }
+
+    private Path path(String hash) {
+        return directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static void forceDirectory(Path dir) throws IOException {
+        // Windows cannot open a directory as a channel, and its renames need no separate flush
+        if (WINDOWS) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package engine;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A connection with its own long-lived prepared statements, so each SQL
+ * string is parsed and compiled once per connection rather than per call.
+ *
+ * Not thread-safe: {@link ConnectionPool} hands a connection to one thread at
+ * a time. Callers must not close the statements they get back, only the
+ * result sets they open on them.
+ *
+ * It also remembers keys a caller has confirmed exist in the database, such
+ * as interned IDs. A key noted inside a transaction only becomes known once
+ * {@link #committed()} runs, so a rolled-back insert is never trusted.
+ */
+class CachedConnection implements AutoCloseable {
+
+    private final Connection connection;
+    private final boolean owned;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    // Access-ordered and bounded: the least recently used keys are looked up again
+    private final Map<String, Boolean> known = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_KNOWN_KEYS;
+        }
+    };
+    private final List<String> pending = new ArrayList<>();
+
+    static final int MAX_KNOWN_KEYS = 100_000;
+
+    CachedConnection(Connection connection, boolean owned) {
+        this.connection = connection;
+        this.owned = owned;
+    }
+
+    Connection connection() {
+        return connection;
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    boolean knows(String key) {
+        return known.containsKey(key);
+    }
+
+    // Known from the next commit on; dropped if the transaction rolls back
+    void note(String key) {
+        pending.add(key);
+    }
+
+    void forget(String key) {
+        known.remove(key);
+        pending.remove(key);
+    }
+
+    void committed() {
+        for (String key : pending) {
+            known.put(key, Boolean.TRUE);
+        }
+        pending.clear();
+    }
+
+    void rolledBack() {
+        pending.clear();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (PreparedStatement ps : statements.values()) {
+            ps.close();
+        }
+        statements.clear();
+        if (owned) {
+            connection.close();
+        }
+    }
+}
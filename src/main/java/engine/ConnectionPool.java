@@ -0,0 +1,107 @@
+package engine;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.sqlite.SQLiteConfig;
+
+/**
+ * Connections behind a {@link SQLiteStore}: one writer that owns every
+ * mutation, plus a pool of read-only connections.
+ *
+ * In WAL mode each reader sees the last committed snapshot without blocking
+ * the writer or other readers, so replay reads scale with the pool size. A
+ * pool built around a single caller-supplied connection has no readers; reads
+ * then share the writer connection and are serialized against its
+ * transactions by {@link #writerLock()}.
+ */
+class ConnectionPool implements AutoCloseable {
+
+    interface ReadOp<T> {
+        T apply(CachedConnection connection) throws SQLException;
+    }
+
+    private final CachedConnection writer;
+    private final BlockingQueue<CachedConnection> readers;
+    private final List<CachedConnection> allReaders = new ArrayList<>();
+    private final ReentrantLock writerLock = new ReentrantLock();
+
+    // Shared mode: the caller owns the connection and reads go through it
+    ConnectionPool(Connection connection) {
+        this.writer = new CachedConnection(connection, false);
+        this.readers = null;
+    }
+
+    // Owned mode: the writer must already have the schema and WAL mode set up
+    ConnectionPool(Connection writer, String url, int readerCount) throws SQLException {
+        this.writer = new CachedConnection(writer, true);
+        if (readerCount <= 0 || url.contains(":memory:")) {
+            // Private in-memory databases are invisible to other connections
+            this.readers = null;
+            return;
+        }
+        this.readers = new ArrayBlockingQueue<>(readerCount);
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        config.setBusyTimeout(5000);
+        for (int i = 0; i < readerCount; i++) {
+            CachedConnection reader = new CachedConnection(config.createConnection(url), true);
+            allReaders.add(reader);
+            readers.add(reader);
+        }
+    }
+
+    CachedConnection writer() {
+        return writer;
+    }
+
+    /**
+     * Held by the writer for the length of each transaction. Only contended
+     * in shared mode, where reads borrow the writer connection.
+     */
+    ReentrantLock writerLock() {
+        return writerLock;
+    }
+
+    <T> T read(ReadOp<T> op) throws SQLException {
+        if (readers == null) {
+            writerLock.lock();
+            try {
+                return op.apply(writer);
+            } finally {
+                writerLock.unlock();
+            }
+        }
+
+        CachedConnection reader;
+        try {
+            reader = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a reader connection", e);
+        }
+        try {
+            return op.apply(reader);
+        } finally {
+            readers.add(reader);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (CachedConnection reader : allReaders) {
+            reader.close();
+        }
+        writerLock.lock();
+        try {
+            writer.close();
+        } finally {
+            writerLock.unlock();
+        }
+    }
+}
@@ -1,67 +1,812 @@
 package engine;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
 
-public class DurableContext {
+public class DurableContext implements AutoCloseable {
+
+    /**
+     * Body of a forked branch; see {@link #forkAsync(Branch)}.
+     */
+    @FunctionalInterface
+    public interface Branch<T> {
+        T run(DurableContext branch) throws Exception;
+    }
 
     private final String workflowId;
-    private final SQLiteStore store;
-    private final ObjectMapper mapper = new ObjectMapper();
-    private final long zombieTimeoutMs = 5000;
+    // Step ID prefix of this (forked) context; empty for the workflow root
+    private final String scope;
+    private final StateStore store;
+    private final LeaseManager leases;
+    private final boolean ownsLeases;
     private final AtomicInteger sequenceCounter = new AtomicInteger(0);
+    // Replay map: whole step history loaded once, then kept current by this context
+    private final Map<String, StepRecord> history;
+    // Async steps and forked branches not finished yet, across the whole workflow
+    private final AtomicInteger inFlight;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private StepCodec codec = StepCodecs.JSON_CODEC;
+    private int compressionThreshold = StepCodecs.DEFAULT_COMPRESSION_THRESHOLD;
+    private BlobStore blobStore;
+    private int offloadThreshold = BlobStore.DEFAULT_OFFLOAD_THRESHOLD;
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
+    // Set by WorkflowRuntime: sleeping unwinds the workflow instead of parking its thread
+    private boolean suspendOnSleep;
+    // Sequence of the newest snapshot recorded or restored by this context
+    private int snapshotSequence;
     private static final Logger log = LoggerFactory.getLogger(DurableContext.class);
+    // Shorter sleeps park: unloading and replaying the workflow would cost more than the wait
+    private static final long MIN_SUSPEND_MS = 50;
+    // Step that carries the input of a run started by continueAsNew
+    static final String INPUT_STEP_ID = "$input";
+    // Step that holds the latest snapshot of user state, overwritten in place
+    static final String SNAPSHOT_STEP_ID = "$snapshot";
+
+    // Recorded form of a snapshot: the state and the sequence it was taken at
+    record Snapshot<T>(int sequence, T state) {
+    }
+
+    // Async steps run on a private virtual-thread-per-task executor; the context's
+    // own lease manager only occupies the shared heartbeat thread while a step runs
+    public DurableContext(String workflowId, StateStore store) throws SQLException {
+        this(workflowId, store, Executors.newVirtualThreadPerTaskExecutor(), true, new LeaseManager(store), true);
+    }
 
-    public DurableContext(String workflowId, SQLiteStore store) {
+    // Async steps run on the given executor, which the caller keeps ownership of
+    public DurableContext(String workflowId, StateStore store, ExecutorService executor) throws SQLException {
+        this(workflowId, store, executor, false, new LeaseManager(store), true);
+    }
+
+    /**
+     * Context whose step leases are renewed by a caller-owned manager, so one
+     * heartbeat covers every workflow of a worker.
+     */
+    public DurableContext(String workflowId, StateStore store, ExecutorService executor, LeaseManager leases)
+            throws SQLException {
+        this(workflowId, store, executor, false, leases, false);
+    }
+
+    private DurableContext(String workflowId, StateStore store, ExecutorService executor, boolean ownsExecutor,
+                           LeaseManager leases, boolean ownsLeases) throws SQLException {
         this.workflowId = workflowId;
+        this.scope = "";
         this.store = store;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.leases = leases;
+        this.ownsLeases = ownsLeases;
+        this.history = new ConcurrentHashMap<>(store.loadHistory(workflowId));
+        this.inFlight = new AtomicInteger();
+        if (!history.isEmpty()) {
+            log.info("Resuming workflow {} with {} recorded steps", workflowId, history.size());
+        }
+    }
+
+    // Child context sharing everything but the sequence counter
+    private DurableContext(DurableContext parent, String scope) {
+        this.workflowId = parent.workflowId;
+        this.scope = scope;
+        this.store = parent.store;
+        this.executor = parent.executor;
+        this.ownsExecutor = false;
+        this.leases = parent.leases;
+        this.ownsLeases = false;
+        this.history = parent.history;
+        this.inFlight = parent.inFlight;
+        this.codec = parent.codec;
+        this.compressionThreshold = parent.compressionThreshold;
+        this.blobStore = parent.blobStore;
+        this.offloadThreshold = parent.offloadThreshold;
+        this.retryPolicy = parent.retryPolicy;
+    }
+
+    private String nextId(String kind) {
+        if (snapshotSequence == 0 && scope.isEmpty() && history.containsKey(SNAPSHOT_STEP_ID)) {
+            // The steps before the snapshot are gone; replaying from step 1 would run them again
+            throw new IllegalStateException("Workflow " + workflowId + " has a snapshot; call restore first");
+        }
+        return scope + kind + "-" + sequenceCounter.incrementAndGet();
     }
 
     // Step method with automatic sequence ID
     public <T> T step(Callable<T> action) throws Exception {
-        String stepId = "step-" + sequenceCounter.incrementAndGet();
-        return step(stepId, action);
+        return step(nextId("step"), action);
     }
 
     // Original step method (still available if user wants manual ID)
     public <T> T step(String stepId, Callable<T> action) throws Exception {
+        return step(stepId, ResultTypes.OBJECT, retryPolicy, action);
+    }
+
+    // Typed variants: replay decodes straight into T instead of maps and lists
+    public <T> T step(Class<T> type, Callable<T> action) throws Exception {
+        return step(nextId("step"), ResultTypes.of(type), retryPolicy, action);
+    }
+
+    public <T> T step(TypeReference<T> type, Callable<T> action) throws Exception {
+        return step(nextId("step"), ResultTypes.of(type), retryPolicy, action);
+    }
+
+    public <T> T step(String stepId, Class<T> type, Callable<T> action) throws Exception {
+        return step(stepId, ResultTypes.of(type), retryPolicy, action);
+    }
+
+    public <T> T step(String stepId, TypeReference<T> type, Callable<T> action) throws Exception {
+        return step(stepId, ResultTypes.of(type), retryPolicy, action);
+    }
+
+    // Variants that retry failures of this step under their own policy
+    public <T> T step(RetryPolicy policy, Callable<T> action) throws Exception {
+        return step(nextId("step"), ResultTypes.OBJECT, policy, action);
+    }
+
+    public <T> T step(Class<T> type, RetryPolicy policy, Callable<T> action) throws Exception {
+        return step(nextId("step"), ResultTypes.of(type), policy, action);
+    }
+
+    public <T> T step(String stepId, Class<T> type, RetryPolicy policy, Callable<T> action) throws Exception {
+        return step(stepId, ResultTypes.of(type), policy, action);
+    }
+
+    private <T> T step(String stepId, JavaType type, RetryPolicy policy, Callable<T> action) throws Exception {
+        StepRecord recorded = replayable(stepId);
+        if (recorded != null) {
+            return decode(recorded, type);
+        }
+        return run(stepId, type, policy, action);
+    }
+
+    /**
+     * Runs a step until it completes or its policy gives up. Failed attempts
+     * are recorded with the time the next one is due before the backoff
+     * starts, so a workflow resumed after a crash continues the attempt count
+     * and waits out the rest of the backoff instead of starting over. The
+     * backoff is waited out like {@link #sleep(Duration)}: under a runtime
+     * with a {@link TimerStore} the workflow unloads until a durable timer
+     * fires; otherwise the thread parks without holding a carrier thread.
+     */
+    private <T> T run(String stepId, JavaType type, RetryPolicy policy, Callable<T> action) throws Exception {
+        int attempt = attempts(stepId);
+        while (true) {
+            awaitRetry(stepId);
+            Attempt<T> outcome = execute(stepId, type, policy, action, ++attempt);
+            if (outcome.succeeded()) {
+                return outcome.result();
+            }
+        }
+    }
+
+    // Waits until the recorded retry time of the step, if it has one; the timer ID is the step ID
+    private void awaitRetry(String stepId) {
+        long remaining = retryDelay(stepId);
+        if (remaining <= 0) {
+            return;
+        }
+        if (suspendOnSleep && remaining >= MIN_SUSPEND_MS) {
+            throw new WorkflowSuspendedException(workflowId, stepId, Instant.now().toEpochMilli() + remaining);
+        }
+        after(remaining).join();
+    }
+
+    // Millis left until the next attempt of a step waiting for its retry; 0 if it may run now
+    private long retryDelay(String stepId) {
+        StepRecord existing = history.get(stepId);
+        return existing == null ? 0 : Math.max(0, existing.getRetryAt() - Instant.now().toEpochMilli());
+    }
+
+    /**
+     * Local step, for short actions without side effects: the in-progress
+     * marker is never written, only the outcome, so a step costs one commit
+     * instead of two. Nothing is recorded while the action runs, so a crash
+     * mid-step simply runs it again on replay, and no lease guards it against
+     * a concurrent run elsewhere. Retries back off in memory; only the final
+     * failure is recorded. Shares the sequence of {@link #step(Callable)}.
+     */
+    public <T> T localStep(Callable<T> action) throws Exception {
+        return localStep(nextId("step"), ResultTypes.OBJECT, retryPolicy, action);
+    }
+
+    public <T> T localStep(Class<T> type, Callable<T> action) throws Exception {
+        return localStep(nextId("step"), ResultTypes.of(type), retryPolicy, action);
+    }
+
+    public <T> T localStep(String stepId, Class<T> type, Callable<T> action) throws Exception {
+        return localStep(stepId, ResultTypes.of(type), retryPolicy, action);
+    }
+
+    private <T> T localStep(String stepId, JavaType type, RetryPolicy policy, Callable<T> action)
+            throws Exception {
+        StepRecord recorded = replayable(stepId);
+        if (recorded != null) {
+            return decode(recorded, type);
+        }
+        int attempt = 0;
+        while (true) {
+            attempt++;
+            T result;
+            try {
+                result = action.call();
+            } catch (Exception e) {
+                String message = e.toString();
+                if (!policy.shouldRetry(e, attempt)) {
+                    StepRecord failed = new StepRecord(workflowId, stepId, StepStatus.FAILED.name(),
+                            message.getBytes(StandardCharsets.UTF_8), StepCodecs.JSON,
+                            Instant.now().toEpochMilli(), null, 0, attempt, message);
+                    store.batch(List.of(failed));
+                    history.put(stepId, failed);
+                    log.error("Local step {} of workflow {} failed after {} attempts", stepId, workflowId, attempt, e);
+                    throw new StepFailedException(stepId, attempt, message, e);
+                }
+                long backoffMs = policy.backoffMs(attempt);
+                log.warn("Local step {} of workflow {} failed (attempt {}), retrying in {} ms: {}",
+                        stepId, workflowId, attempt, backoffMs, message);
+                after(backoffMs).join();
+                continue;
+            }
+            // One upsert: the row goes straight to COMPLETED
+            StepRecord completed = completed(stepId, result, type);
+            store.batch(List.of(completed));
+            history.put(stepId, completed);
+            return result;
+        }
+    }
 
-        StepRecord existing = store.getStep(workflowId, stepId);
+    /**
+     * Like {@link #step(Class, Callable)}, but on replay the recorded output is
+     * only read and decoded if the workflow calls {@link LazyResult#get()}.
+     * Meant for large results, especially ones offloaded to a blob store.
+     */
+    public <T> LazyResult<T> stepLazy(Class<T> type, Callable<T> action) throws Exception {
+        return stepLazy(nextId("step"), ResultTypes.of(type), action);
+    }
+
+    public <T> LazyResult<T> stepLazy(TypeReference<T> type, Callable<T> action) throws Exception {
+        return stepLazy(nextId("step"), ResultTypes.of(type), action);
+    }
+
+    private <T> LazyResult<T> stepLazy(String stepId, JavaType type, Callable<T> action) throws Exception {
+        StepRecord completed = replayable(stepId);
+        if (completed != null) {
+            return new LazyResult<>(() -> decode(completed, type));
+        }
+        return LazyResult.of(run(stepId, type, retryPolicy, action));
+    }
+
+    /**
+     * Completed record to replay, or null if the step has to run. A step
+     * that failed for good fails again here without running.
+     */
+    private StepRecord replayable(String stepId) throws Exception {
+
+        StepRecord existing = history.get(stepId);
 
         if (existing != null) {
 
+            if (existing.getStatus().equals(StepStatus.IN_PROGRESS.name())) {
+                existing = claimable(stepId);
+                if (existing == null) {
+                    return null;
+                }
+            }
+
             if (existing.getStatus().equals(StepStatus.COMPLETED.name())) {
-                return mapper.readValue(existing.getOutput(), Object.class) != null
-                        ? (T) mapper.readValue(existing.getOutput(), Object.class)
-                        : null;
+                return existing;
             }
 
-            if (existing.getStatus().equals(StepStatus.IN_PROGRESS.name())) {
-                long age = Instant.now().toEpochMilli() - existing.getUpdatedAt();
-                if (age < zombieTimeoutMs) {
-                    throw new IllegalStateException("Step currently in progress.");
+            if (existing.getStatus().equals(StepStatus.FAILED.name())) {
+                String error = existing.getLastError() != null ? existing.getLastError() : existing.getOutput();
+                throw new StepFailedException(stepId, Math.max(1, existing.getAttempts()), error, null);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * An IN_PROGRESS step may only be run again once its owner has stopped
+     * renewing the lease, or once it is waiting for a retry. The preloaded
+     * record is stale by now, so the step is re-read from the store. Returns
+     * the step's record if it has finished meanwhile, or null if it may run.
+     */
+    private StepRecord claimable(String stepId) throws SQLException {
+        if (leases.isRunningHere(new StepKey(workflowId, stepId))) {
+            throw new IllegalStateException("Step currently in progress.");
+        }
+        StepRecord current = store.getStep(workflowId, stepId);
+        if (current == null) {
+            history.remove(stepId);
+            return null;
+        }
+        if (!current.getStatus().equals(StepStatus.IN_PROGRESS.name())) {
+            history.put(stepId, current);
+            return current;
+        }
+        history.put(stepId, current);
+        if (current.isRetryPending()) {
+            log.info("Resuming step {} of workflow {} after {} failed attempts",
+                    stepId, workflowId, current.getAttempts());
+            return null;
+        }
+        if (!leases.isExpired(current, Instant.now().toEpochMilli())) {
+            throw new IllegalStateException("Step currently in progress.");
+        }
+        log.warn("Taking over step {} of workflow {}: lease of {} expired",
+                stepId, workflowId, current.getOwner());
+        return null;
+    }
+
+    // Failed attempts recorded for a step that is about to run
+    private int attempts(String stepId) {
+        StepRecord existing = history.get(stepId);
+        return existing == null ? 0 : existing.getAttempts();
+    }
+
+    // Outcome of one attempt: the step's result, or the backoff before the next attempt
+    private record Attempt<T>(T result, long retryAfterMs) {
+        boolean succeeded() {
+            return retryAfterMs < 0;
+        }
+    }
+
+    private <T> Attempt<T> execute(String stepId, JavaType type, RetryPolicy policy, Callable<T> action,
+                                   int attempt) throws Exception {
+        StepKey key = new StepKey(workflowId, stepId);
+        long leaseExpiresAt = leases.acquire(key);
+        try {
+            // Another process may have claimed the step since it was read; the store arbitrates
+            StepRecord expected = history.get(stepId);
+            long version = store.claimStep(workflowId, stepId, leases.getOwnerId(), leaseExpiresAt, expected);
+            if (version < 0) {
+                throw new IllegalStateException("Step currently in progress.");
+            }
+            history.put(stepId, new StepRecord(workflowId, stepId, StepStatus.IN_PROGRESS.name(), null,
+                    StepCodecs.JSON, Instant.now().toEpochMilli(), leases.getOwnerId(), leaseExpiresAt,
+                    attempt - 1, expected == null ? null : expected.getLastError(), version));
+
+            T result;
+            try {
+                result = action.call();
+            } catch (Exception e) {
+                return new Attempt<>(null, failed(stepId, policy, attempt, version, e));
+            }
+
+            StepRecord completed = completed(stepId, result, type);
+            if (!store.markCompleted(workflowId, stepId, completed.getPayload(), completed.getCodec(),
+                    leases.getOwnerId(), version)) {
+                throw takenOver(stepId);
+            }
+            history.put(stepId, completed);
+
+            return new Attempt<>(result, -1);
+        } finally {
+            leases.release(key);
+        }
+    }
+
+    // Encoded result record, with a large payload offloaded to the blob store
+    private StepRecord completed(String stepId, Object result, JavaType type) throws IOException {
+        StepRecord completed = StepCodecs.encode(workflowId, stepId, result, type,
+                codec, compressionThreshold, Instant.now().toEpochMilli());
+        if (blobStore != null && completed.getPayload() != null
+                && completed.getPayload().length >= offloadThreshold) {
+            completed = blobStore.offload(completed);
+        }
+        return completed;
+    }
+
+    /**
+     * Records a failed attempt. Returns the backoff before the next attempt,
+     * or throws once the policy gives up on the step.
+     */
+    private long failed(String stepId, RetryPolicy policy, int attempt, long version,
+                        Exception error) throws Exception {
+        String message = error.toString();
+        long now = Instant.now().toEpochMilli();
+        if (!policy.shouldRetry(error, attempt)) {
+            if (!store.markFailed(workflowId, stepId, attempt, message, leases.getOwnerId(), version)) {
+                throw takenOver(stepId);
+            }
+            history.put(stepId, new StepRecord(workflowId, stepId, StepStatus.FAILED.name(),
+                    message.getBytes(StandardCharsets.UTF_8), StepCodecs.JSON, now, null, 0, attempt, message,
+                    version + 1));
+            log.error("Step {} of workflow {} failed after {} attempts", stepId, workflowId, attempt, error);
+            throw new StepFailedException(stepId, attempt, message, error);
+        }
+        long backoffMs = policy.backoffMs(attempt);
+        if (!store.markRetrying(workflowId, stepId, attempt, message, now + backoffMs, leases.getOwnerId(), version)) {
+            throw takenOver(stepId);
+        }
+        history.put(stepId, new StepRecord(workflowId, stepId, StepStatus.IN_PROGRESS.name(),
+                null, StepCodecs.JSON, now, null, now + backoffMs, attempt, message, version + 1));
+        log.warn("Step {} of workflow {} failed (attempt {}), retrying in {} ms: {}",
+                stepId, workflowId, attempt, backoffMs, message);
+        return backoffMs;
+    }
+
+    // A finishing write lost to a worker that took the step over after our lease expired
+    private IllegalStateException takenOver(String stepId) {
+        log.warn("Step {} of workflow {} was taken over by another worker; discarding this outcome",
+                stepId, workflowId);
+        return new IllegalStateException("Step " + stepId + " was taken over by another worker.");
+    }
+
+    // Completes after the delay on the JDK's shared delay scheduler, without occupying a thread meanwhile
+    private static CompletableFuture<Void> after(long delayMs) {
+        return new CompletableFuture<Void>().completeOnTimeout(null, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Offloaded payloads stream from the blob file straight into the decoder
+    private <T> T decode(StepRecord record, JavaType type) throws IOException {
+        if (!StepCodecs.isBlobReference(record.getCodec())) {
+            return StepCodecs.decode(record, type);
+        }
+        if (blobStore == null) {
+            throw new IllegalStateException("Step " + record.getStepId()
+                    + " output is in a blob store, but none is configured");
+        }
+        return StepCodecs.decode(blobStore.openPayload(record), record.getCodec(), type);
+    }
+
+    /**
+     * Runs a step on this context's executor.
+     *
+     * The step ID is taken when this method is called, not when the step
+     * runs, so IDs follow dispatch order on the calling thread. Each step
+     * blocks only its own executor thread while its checkpoint commits;
+     * steps dispatched meanwhile run and share the next group commit.
+     * Checked exceptions from the action complete the future exceptionally.
+     *
+     * Between retries no thread is held at all: each attempt is dispatched
+     * to the executor afresh when its backoff timer fires.
+     */
+    public <T> CompletableFuture<T> stepAsync(Callable<T> action) {
+        return stepAsync(nextId("step"), ResultTypes.OBJECT, retryPolicy, action);
+    }
+
+    public <T> CompletableFuture<T> stepAsync(String stepId, Callable<T> action) {
+        return stepAsync(stepId, ResultTypes.OBJECT, retryPolicy, action);
+    }
+
+    public <T> CompletableFuture<T> stepAsync(Class<T> type, Callable<T> action) {
+        return stepAsync(nextId("step"), ResultTypes.of(type), retryPolicy, action);
+    }
+
+    public <T> CompletableFuture<T> stepAsync(TypeReference<T> type, Callable<T> action) {
+        return stepAsync(nextId("step"), ResultTypes.of(type), retryPolicy, action);
+    }
+
+    public <T> CompletableFuture<T> stepAsync(RetryPolicy policy, Callable<T> action) {
+        return stepAsync(nextId("step"), ResultTypes.OBJECT, policy, action);
+    }
+
+    public <T> CompletableFuture<T> stepAsync(Class<T> type, RetryPolicy policy, Callable<T> action) {
+        return stepAsync(nextId("step"), ResultTypes.of(type), policy, action);
+    }
+
+    private <T> CompletableFuture<T> stepAsync(String stepId, JavaType type, RetryPolicy policy,
+                                               Callable<T> action) {
+        StepRecord existing = history.get(stepId);
+        if (existing != null && existing.getStatus().equals(StepStatus.COMPLETED.name())) {
+            // Replay needs no I/O, so skip the executor hop
+            try {
+                return CompletableFuture.completedFuture(decode(existing, type));
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        CompletableFuture<T> future = tracked(new CompletableFuture<>());
+        executor.execute(() -> {
+            try {
+                StepRecord recorded = replayable(stepId);
+                if (recorded != null) {
+                    future.complete(decode(recorded, type));
+                } else {
+                    // A step resumed inside its backoff waits out the rest of it first
+                    int attempt = attempts(stepId) + 1;
+                    long delayMs = retryDelay(stepId);
+                    if (delayMs > 0) {
+                        after(delayMs).thenRunAsync(
+                                () -> attemptAsync(stepId, type, policy, action, attempt, future), executor);
+                    } else {
+                        attemptAsync(stepId, type, policy, action, attempt, future);
+                    }
                 }
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private <T> void attemptAsync(String stepId, JavaType type, RetryPolicy policy, Callable<T> action,
+                                  int attempt, CompletableFuture<T> future) {
+        try {
+            Attempt<T> outcome = execute(stepId, type, policy, action, attempt);
+            if (outcome.succeeded()) {
+                future.complete(outcome.result());
+                return;
+            }
+            after(outcome.retryAfterMs()).thenRunAsync(
+                    () -> attemptAsync(stepId, type, policy, action, attempt + 1, future), executor);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Durable sleep. The wake-up time is recorded as a step the first time
+     * through, so a replay after a restart waits only for what is left of
+     * the original delay and returns at once if it has passed.
+     *
+     * Under a {@link WorkflowRuntime} whose store is a {@link TimerStore}, a
+     * sleep that has not elapsed throws {@link WorkflowSuspendedException}:
+     * the workflow unloads, and the runtime replays it when the timer fires.
+     * Elsewhere, and inside forks, the calling thread parks until then.
+     */
+    public void sleep(Duration duration) throws Exception {
+        sleep(nextId("timer"), duration);
+    }
+
+    public void sleep(String timerId, Duration duration) throws Exception {
+        long fireAt = step(timerId, ResultTypes.of(Long.class), RetryPolicy.NONE,
+                () -> Instant.now().toEpochMilli() + duration.toMillis());
+        long remaining = fireAt - Instant.now().toEpochMilli();
+        if (remaining <= 0) {
+            return;
+        }
+        if (suspendOnSleep && remaining >= MIN_SUSPEND_MS) {
+            throw new WorkflowSuspendedException(workflowId, timerId, fireAt);
+        }
+        after(remaining).join();
+    }
+
+    public void sleepUntil(Instant wakeUp) throws Exception {
+        sleep(nextId("timer"), Duration.between(Instant.now(), wakeUp));
+    }
+
+    /**
+     * Durable timer for composing with async steps: completes once the
+     * recorded deadline passes, without holding a thread meanwhile. Unlike
+     * {@link #sleep(Duration)} it never unloads the workflow.
+     */
+    public CompletableFuture<Void> timer(Duration duration) {
+        String timerId = nextId("timer");
+        try {
+            long fireAt = step(timerId, ResultTypes.of(Long.class), RetryPolicy.NONE,
+                    () -> Instant.now().toEpochMilli() + duration.toMillis());
+            return after(Math.max(0, fireAt - Instant.now().toEpochMilli()));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Ends this run of the workflow and starts a new one with an empty
+     * history apart from {@code input}, so long-running loops do not grow
+     * their history (and their replay time) without bound. The old run's
+     * steps and pending timers are dropped in the same write that records
+     * the input. Always throws {@link WorkflowContinuedException}: under a
+     * {@link WorkflowRuntime} the workflow then runs again from the top;
+     * elsewhere the caller catches it and opens a new context.
+     *
+     * Call it from the workflow's own flow. A step still in progress, such
+     * as an async step, a fork or a step waiting for its retry, makes it
+     * throw {@link IllegalStateException}: the step would otherwise write
+     * its old record into the new run's history.
+     */
+    public void continueAsNew(Object input) throws Exception {
+        requireNoStepsInProgress("continue");
+        StepRecord record = completed(INPUT_STEP_ID, input, ResultTypes.OBJECT);
+        store.replaceHistory(workflowId, List.of(record));
+        log.info("Workflow {} continued as new after {} recorded steps", workflowId, history.size());
+        history.clear();
+        history.put(INPUT_STEP_ID, record);
+        throw new WorkflowContinuedException(workflowId);
+    }
+
+    /**
+     * Input passed to {@link #continueAsNew} by the previous run, or null on
+     * the first run.
+     */
+    public <T> T getInput(Class<T> type) throws IOException {
+        return getInput(ResultTypes.of(type));
+    }
+
+    public <T> T getInput(TypeReference<T> type) throws IOException {
+        return getInput(ResultTypes.of(type));
+    }
+
+    private <T> T getInput(JavaType type) throws IOException {
+        StepRecord input = history.get(INPUT_STEP_ID);
+        return input == null ? null : decode(input, type);
+    }
+
+    /**
+     * Records {@code state} together with the current step sequence and drops
+     * the steps recorded so far, so a resume loads and replays only the steps
+     * since the latest snapshot. A resumed run must start with
+     * {@link #restore(Class)}, which hands the state back and continues
+     * numbering steps from where it was taken. Costs one write transaction; a
+     * replay that reaches a snapshot it already restored writes nothing.
+     *
+     * The state must capture everything the workflow needs to carry on from
+     * here, since the steps it summarizes are gone. Pending timers are kept.
+     * Call it from the workflow's own flow (not a fork); a step still in
+     * progress, such as an async step or one waiting for its retry, makes it
+     * throw {@link IllegalStateException} instead of dropping that step.
+     */
+    public void snapshot(Object state) throws Exception {
+        if (!scope.isEmpty()) {
+            throw new IllegalStateException("Snapshots are taken on the workflow's root context");
+        }
+        int sequence = sequenceCounter.get();
+        if (sequence <= snapshotSequence) {
+            return;
+        }
+        requireNoStepsInProgress("snapshot");
+        StepRecord record = completed(SNAPSHOT_STEP_ID, new Snapshot<>(sequence, state), ResultTypes.OBJECT);
+        List<StepRecord> kept = new ArrayList<>(2);
+        StepRecord input = history.get(INPUT_STEP_ID);
+        if (input != null) {
+            kept.add(input);
+        }
+        kept.add(record);
+        store.replaceSteps(workflowId, kept);
+        log.debug("Workflow {} snapshot at step {} replaced {} recorded steps", workflowId, sequence, history.size());
+        history.clear();
+        kept.forEach(r -> history.put(r.getStepId(), r));
+        snapshotSequence = sequence;
+    }
+
+    // Dropping history under a running step would let it write into the wrong run
+    private void requireNoStepsInProgress(String action) {
+        if (inFlight.get() > 0) {
+            throw new IllegalStateException("Cannot " + action + " workflow " + workflowId + " with "
+                    + inFlight.get() + " async steps or forks still running");
+        }
+        for (StepRecord step : history.values()) {
+            if (step.getStatus().equals(StepStatus.IN_PROGRESS.name())) {
+                throw new IllegalStateException("Cannot " + action + " workflow " + workflowId + " while step "
+                        + step.getStepId() + " is in progress");
             }
         }
+    }
 
-        store.insertInProgress(workflowId, stepId);
+    /**
+     * State of the latest {@link #snapshot(Object)}, with the step sequence
+     * fast-forwarded to where it was taken, or null if there is none. Must be
+     * called before the first step of the run.
+     */
+    public <T> T restore(Class<T> type) throws IOException {
+        return restore(ResultTypes.of(type));
+    }
 
-        T result = action.call();
+    public <T> T restore(TypeReference<T> type) throws IOException {
+        return restore(ResultTypes.of(type));
+    }
+
+    private <T> T restore(JavaType type) throws IOException {
+        if (sequenceCounter.get() != 0) {
+            throw new IllegalStateException("restore must be called before the first step");
+        }
+        StepRecord record = history.get(SNAPSHOT_STEP_ID);
+        if (record == null) {
+            return null;
+        }
+        JavaType snapshotType = ResultTypes.MAPPER.getTypeFactory().constructParametricType(Snapshot.class, type);
+        Snapshot<T> snapshot = decode(record, snapshotType);
+        sequenceCounter.set(snapshot.sequence());
+        snapshotSequence = snapshot.sequence();
+        log.info("Workflow {} restored its snapshot at step {} of {} recorded", workflowId,
+                snapshot.sequence(), history.size());
+        return snapshot.state();
+    }
+
+    void setSuspendOnSleep(boolean suspendOnSleep) {
+        this.suspendOnSleep = suspendOnSleep;
+    }
+
+    /**
+     * Opens a child scope for a branch of parallel work.
+     *
+     * The scope takes its ID from this context's sequence at the point of
+     * the call ({@code fork-3}), and steps inside it are numbered by their own
+     * counter ({@code fork-3/step-1}, {@code fork-3/step-2}). Each branch's step
+     * IDs therefore depend only on the order of steps within that branch, not
+     * on how the branches interleave across threads, so replay hands every
+     * branch its own recorded results however wide the fan-out is.
+     *
+     * Call fork() from the parent's own flow, before handing the child to
+     * another thread.
+     */
+    public DurableContext fork() {
+        return new DurableContext(this, nextId("fork") + "/");
+    }
+
+    /**
+     * Forks a child scope and runs {@code branch} in it on this context's
+     * executor.
+     */
+    public <T> CompletableFuture<T> forkAsync(Branch<T> branch) {
+        DurableContext child = fork();
+        CompletableFuture<T> future = tracked(new CompletableFuture<>());
+        executor.execute(() -> {
+            try {
+                future.complete(branch.run(child));
+            } catch (Throwable e) {
+                future.completeExceptionally(new CompletionException(e));
+            }
+        });
+        return future;
+    }
+
+    // Counted as in flight until it completes, so a snapshot cannot drop its steps
+    private <T> CompletableFuture<T> tracked(CompletableFuture<T> future) {
+        inFlight.incrementAndGet();
+        future.whenComplete((result, error) -> inFlight.decrementAndGet());
+        return future;
+    }
 
-        String json = mapper.writeValueAsString(result);
+    /**
+     * Codec for results of steps run from now on; already recorded steps keep
+     * decoding with the codec they were written with. Forks inherit the codec
+     * of their parent at fork time.
+     */
+    public void setCodec(StepCodec codec) {
+        this.codec = codec;
+    }
 
-        store.markCompleted(workflowId, stepId, json);
+    // Encoded results of at least this many bytes are Deflate-compressed
+    public void setCompressionThreshold(int bytes) {
+        this.compressionThreshold = bytes;
+    }
 
-        return result;
+    /**
+     * Encoded results of at least {@code offloadThreshold} bytes are written
+     * to {@code blobStore} and the step row keeps only their hash. Needed to
+     * replay such steps, so configure it on every context of a workflow.
+     */
+    public void setBlobStore(BlobStore blobStore, int offloadThreshold) {
+        this.blobStore = blobStore;
+        this.offloadThreshold = offloadThreshold;
+    }
+
+    // Policy for steps run from now on that do not pass their own
+    public void setRetryPolicy(RetryPolicy policy) {
+        this.retryPolicy = policy;
     }
 
     public String getWorkflowId() {
         return workflowId;
     }
+
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+        if (ownsLeases) {
+            leases.close();
+        }
+    }
 }
@@ -0,0 +1,313 @@
+package engine;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single writer thread that owns all mutations on the pool's writer connection.
+ *
+ * Callers from any thread submit write operations and block until the
+ * transaction containing their write has committed. Writes that queue up
+ * while a commit is in flight are flushed together in the next transaction,
+ * so N concurrent steps cost one WAL fsync instead of N.
+ *
+ * Write-behind callers use {@link #submitAsync} instead, which returns as soon
+ * as the write is queued. At most {@code maxPending} such writes are queued
+ * at once, which bounds what a crash can lose.
+ */
+class GroupCommitWriter implements AutoCloseable {
+
+    interface WriteOp<T> {
+        T apply(CachedConnection connection) throws SQLException;
+    }
+
+    private static final class PendingWrite<T> {
+        final WriteOp<T> op;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        T result;
+
+        PendingWrite(WriteOp<T> op) {
+            this.op = op;
+        }
+
+        void apply(CachedConnection connection) throws SQLException {
+            result = op.apply(connection);
+        }
+
+        void complete() {
+            future.complete(result);
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    private final ConnectionPool pool;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final BlockingQueue<PendingWrite<?>> queue = new LinkedBlockingQueue<>();
+    private final Semaphore pending;
+    // Newest write-behind write; the queue commits in order, so once it is done all earlier ones are too
+    private volatile PendingWrite<?> lastAsync;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong committedWrites = new AtomicLong();
+
+    GroupCommitWriter(ConnectionPool pool, int maxBatchSize, long maxLingerMs) {
+        this(pool, maxBatchSize, maxLingerMs, maxBatchSize);
+    }
+
+    GroupCommitWriter(ConnectionPool pool, int maxBatchSize, long maxLingerMs, int maxPending) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be >= 1");
+        }
+        this.pool = pool;
+        this.pending = new Semaphore(maxPending);
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMs);
+        this.thread = new Thread(this::run, "sqlite-group-commit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    <T> T submit(WriteOp<T> op) throws SQLException {
+        PendingWrite<T> write = new PendingWrite<>(op);
+        enqueue(write);
+        try {
+            while (true) {
+                try {
+                    return write.future.get(100, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Only a writer thread that died of an Error leaves a write unanswered
+                    if (!thread.isAlive() && !write.future.isDone()) {
+                        throw new SQLException("Writer thread has stopped");
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sql) {
+                throw sql;
+            }
+            throw new SQLException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for commit", e);
+        }
+    }
+
+    // Under the lock close() takes, so no write is added after close() has drained the queue
+    private synchronized void enqueue(PendingWrite<?> write) throws SQLException {
+        if (!running) {
+            throw new SQLException("Writer is closed");
+        }
+        queue.add(write);
+    }
+
+    /**
+     * Queues a write and returns without waiting for its commit, blocking
+     * only while {@code maxPending} earlier ones are still queued. A failed
+     * write-behind write is logged; there is nobody left to throw to.
+     */
+    <T> void submitAsync(WriteOp<T> op) throws SQLException {
+        try {
+            while (!pending.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                if (!running || !thread.isAlive()) {
+                    throw new SQLException("Writer is closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the write-behind queue", e);
+        }
+        PendingWrite<T> write = new PendingWrite<>(op);
+        synchronized (this) {
+            if (!running || !thread.isAlive()) {
+                pending.release();
+                throw new SQLException("Writer is closed");
+            }
+            write.future.whenComplete((result, error) -> {
+                pending.release();
+                if (error != null) {
+                    log.error("Write-behind write failed", error);
+                }
+            });
+            lastAsync = write;
+            queue.add(write);
+        }
+    }
+
+    /**
+     * Waits until every write-behind write queued so far has been committed
+     * (or has failed), so a following read sees them.
+     */
+    void awaitPending() {
+        PendingWrite<?> last = lastAsync;
+        if (last == null) {
+            return;
+        }
+        try {
+            while (!last.future.isDone() && thread.isAlive()) {
+                try {
+                    last.future.get(100, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException | TimeoutException e) {
+                    // Failures were logged by submitAsync; a timeout re-checks the writer
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<PendingWrite<?>> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                collect(batch);
+                flush(batch);
+            } catch (InterruptedException e) {
+                // close() wakes an idle poll; the loop condition drains what is left
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void collect(List<PendingWrite<?>> batch) {
+        queue.drainTo(batch, maxBatchSize - batch.size());
+        long deadline = System.nanoTime() + maxLingerNanos;
+        while (batch.size() < maxBatchSize && running) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            try {
+                PendingWrite<?> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    return;
+                }
+                batch.add(next);
+            } catch (InterruptedException e) {
+                // close() cuts the linger short; flush what we already have
+                return;
+            }
+            queue.drainTo(batch, maxBatchSize - batch.size());
+        }
+    }
+
+    private void flush(List<PendingWrite<?>> batch) {
+        try {
+            commit(batch);
+            batch.forEach(PendingWrite::complete);
+        } catch (SQLException e) {
+            if (batch.size() == 1) {
+                batch.get(0).future.completeExceptionally(e);
+                return;
+            }
+            // One bad write must not fail its neighbours: retry them one by one
+            log.warn("Batch of {} writes failed, retrying individually", batch.size(), e);
+            for (PendingWrite<?> write : batch) {
+                try {
+                    commit(List.of(write));
+                    write.complete();
+                } catch (SQLException single) {
+                    write.future.completeExceptionally(single);
+                }
+            }
+        }
+    }
+
+    private void commit(List<PendingWrite<?>> batch) throws SQLException {
+        CachedConnection writer = pool.writer();
+        Connection connection = writer.connection();
+        pool.writerLock().lock();
+        try {
+            executeWithRetry(() -> {
+                connection.setAutoCommit(false);
+                try {
+                    for (PendingWrite<?> write : batch) {
+                        write.apply(writer);
+                    }
+                    connection.commit();
+                    writer.committed();
+                    commits.incrementAndGet();
+                    committedWrites.addAndGet(batch.size());
+                } catch (Exception e) {
+                    writer.rolledBack();
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+                return null;
+            });
+        } finally {
+            pool.writerLock().unlock();
+        }
+    }
+
+    // Transactions committed so far; fewer than committedWrites() when writes were batched
+    long commitCount() {
+        return commits.get();
+    }
+
+    long committedWrites() {
+        return committedWrites.get();
+    }
+
+    private interface SQLAction<T> {
+        T execute() throws Exception;
+    }
+
+    private <T> T executeWithRetry(SQLAction<T> action) throws SQLException {
+        int retries = 5;
+        while (retries-- > 0) {
+            try {
+                return action.execute();
+            } catch (Exception e) {
+                if (e instanceof SQLException sql && sql.getMessage().contains("SQLITE_BUSY")) {
+                    try { Thread.sleep(100); } catch (InterruptedException ignored) {}
+                } else if (e instanceof SQLException sql) {
+                    throw sql;
+                } else {
+                    throw new SQLException(e);
+                }
+            }
+        }
+        throw new SQLException("Max retry reached due to SQLITE_BUSY");
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            running = false;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PendingWrite<?> orphan;
+        while ((orphan = queue.poll()) != null) {
+            orphan.future.completeExceptionally(new SQLException("Writer is closed"));
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package engine;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Non-durable {@link StateStore} for tests and benchmarks.
+ *
+ * Every operation is a single lock-free map update, so measurements against
+ * this store show the engine's own overhead without any persistence cost.
+ */
+public class InMemoryStore implements StateStore, TimerStore, WorkflowStore {
+
+    private final Map<String, Map<String, StepRecord>> workflows = new ConcurrentHashMap<>();
+    private final Map<StepKey, TimerRecord> timers = new ConcurrentHashMap<>();
+    private final Map<String, WorkflowRecord> instances = new ConcurrentHashMap<>();
+
+    private Map<String, StepRecord> steps(String workflowId) {
+        return workflows.computeIfAbsent(workflowId, id -> new ConcurrentHashMap<>());
+    }
+
+    @Override
+    public StepRecord getStep(String workflowId, String stepId) {
+        Map<String, StepRecord> steps = workflows.get(workflowId);
+        return steps == null ? null : steps.get(stepId);
+    }
+
+    @Override
+    public Map<String, StepRecord> loadHistory(String workflowId) {
+        Map<String, StepRecord> steps = workflows.get(workflowId);
+        return steps == null ? new HashMap<>() : new HashMap<>(steps);
+    }
+
+    @Override
+    public void insertInProgress(String workflowId, String stepId, String owner, long leaseExpiresAt) {
+        steps(workflowId).compute(stepId, (id, existing) ->
+                StepRecord.claimed(workflowId, stepId, owner, leaseExpiresAt, existing));
+    }
+
+    @Override
+    public long claimStep(String workflowId, String stepId, String owner, long leaseExpiresAt,
+                          StepRecord expected) {
+        long now = Instant.now().toEpochMilli();
+        boolean[] won = new boolean[1];
+        StepRecord result = steps(workflowId).compute(stepId, (id, existing) -> {
+            boolean claimable = expected == null
+                    ? existing == null
+                    : existing != null
+                            && existing.getStatus().equals(StepStatus.IN_PROGRESS.name())
+                            && existing.getVersion() == expected.getVersion()
+                            && Objects.equals(existing.getOwner(), expected.getOwner())
+                            && (existing.getOwner() == null || existing.getLeaseExpiresAt() < now);
+            won[0] = claimable;
+            return claimable ? StepRecord.claimed(workflowId, stepId, owner, leaseExpiresAt, existing) : existing;
+        });
+        return won[0] ? result.getVersion() : -1;
+    }
+
+    @Override
+    public void renewLeases(String owner, Collection<StepKey> steps, long leaseExpiresAt) {
+        for (StepKey key : steps) {
+            steps(key.workflowId()).computeIfPresent(key.stepId(), (id, existing) ->
+                    existing.getStatus().equals(StepStatus.IN_PROGRESS.name()) && owner.equals(existing.getOwner())
+                            ? new StepRecord(existing.getWorkflowId(), id, existing.getStatus(), null,
+                                    existing.getCodec(), existing.getUpdatedAt(), owner, leaseExpiresAt,
+                                    existing.getAttempts(), existing.getLastError(), existing.getVersion())
+                            : existing);
+        }
+    }
+
+    @Override
+    public boolean markCompleted(String workflowId, String stepId, byte[] payload, int codec, String owner,
+                                 long version) {
+        return update(workflowId, stepId, owner, version, existing -> new StepRecord(workflowId, stepId,
+                StepStatus.COMPLETED.name(), payload, codec, Instant.now().toEpochMilli(), null, 0,
+                existing.getAttempts(), existing.getLastError(), existing.getVersion() + 1));
+    }
+
+    @Override
+    public boolean markFailed(String workflowId, String stepId, int attempts, String error, String owner,
+                              long version) {
+        return failed(workflowId, stepId, StepStatus.FAILED, error, attempts, 0, owner, version);
+    }
+
+    @Override
+    public boolean markRetrying(String workflowId, String stepId, int attempts, String error, long retryAt,
+                                String owner, long version) {
+        return failed(workflowId, stepId, StepStatus.IN_PROGRESS, error, attempts, retryAt, owner, version);
+    }
+
+    private boolean failed(String workflowId, String stepId, StepStatus status, String error, int attempts,
+                           long retryAt, String owner, long version) {
+        byte[] output = status == StepStatus.FAILED && error != null ? error.getBytes(StandardCharsets.UTF_8) : null;
+        return update(workflowId, stepId, owner, version, existing -> new StepRecord(workflowId, stepId,
+                status.name(), output, StepCodecs.JSON, Instant.now().toEpochMilli(), null, retryAt, attempts, error,
+                existing.getVersion() + 1));
+    }
+
+    // Applies a finishing write if the step exists and passes the fence
+    private boolean update(String workflowId, String stepId, String owner, long version,
+                           UnaryOperator<StepRecord> next) {
+        boolean[] applied = new boolean[1];
+        steps(workflowId).computeIfPresent(stepId, (id, existing) -> {
+            applied[0] = existing.isHeldBy(owner, version);
+            return applied[0] ? next.apply(existing) : existing;
+        });
+        return applied[0];
+    }
+
+    @Override
+    public void batch(List<StepRecord> records) {
+        for (StepRecord record : records) {
+            steps(record.getWorkflowId()).put(record.getStepId(), record);
+        }
+    }
+
+    @Override
+    public void replaceHistory(String workflowId, List<StepRecord> records) {
+        replaceSteps(workflowId, records);
+        timers.keySet().removeIf(key -> key.workflowId().equals(workflowId));
+    }
+
+    // Readers see either the old map or the new one, never a mix
+    @Override
+    public void replaceSteps(String workflowId, List<StepRecord> records) {
+        Map<String, StepRecord> steps = new ConcurrentHashMap<>();
+        for (StepRecord record : records) {
+            steps.put(record.getStepId(), record);
+        }
+        workflows.put(workflowId, steps);
+    }
+
+    @Override
+    public void scheduleTimer(TimerRecord timer) {
+        timers.put(new StepKey(timer.workflowId(), timer.timerId()), timer);
+    }
+
+    @Override
+    public List<TimerRecord> dueTimers(long fireBefore, int limit) {
+        return timers.values().stream()
+                .filter(timer -> timer.fireAt() < fireBefore)
+                .sorted(Comparator.comparingLong(TimerRecord::fireAt))
+                .limit(limit)
+                .toList();
+    }
+
+    @Override
+    public void deleteTimer(String workflowId, String timerId) {
+        timers.remove(new StepKey(workflowId, timerId));
+    }
+
+    @Override
+    public synchronized void enqueueWorkflow(String workflowId, String workflowType) {
+        instances.putIfAbsent(workflowId, new WorkflowRecord(workflowId, workflowType,
+                WorkflowStatus.PENDING.name(), null, 0, Instant.now().toEpochMilli()));
+    }
+
+    @Override
+    public synchronized void startWorkflow(String workflowId, String workflowType, String owner, long leaseExpiresAt) {
+        instances.put(workflowId, new WorkflowRecord(workflowId, workflowType,
+                WorkflowStatus.RUNNING.name(), owner, leaseExpiresAt, Instant.now().toEpochMilli()));
+    }
+
+    // Claiming spans entries, so the workflow table's writes share one lock
+    @Override
+    public synchronized List<WorkflowRecord> claimWorkflows(String owner, long leaseExpiresAt, int limit) {
+        long now = Instant.now().toEpochMilli();
+        List<WorkflowRecord> claimable = instances.values().stream()
+                .filter(w -> w.status().equals(WorkflowStatus.PENDING.name())
+                        || (w.status().equals(WorkflowStatus.RUNNING.name()) && w.leaseExpiresAt() < now))
+                .sorted(Comparator.comparingLong(WorkflowRecord::updatedAt))
+                .limit(limit)
+                .toList();
+        List<WorkflowRecord> claimed = new ArrayList<>(claimable.size());
+        for (WorkflowRecord w : claimable) {
+            WorkflowRecord running = new WorkflowRecord(w.workflowId(), w.workflowType(),
+                    WorkflowStatus.RUNNING.name(), owner, leaseExpiresAt, now);
+            instances.put(w.workflowId(), running);
+            claimed.add(running);
+        }
+        return claimed;
+    }
+
+    @Override
+    public synchronized boolean wakeWorkflow(String workflowId, String owner, long leaseExpiresAt) {
+        WorkflowRecord w = instances.get(workflowId);
+        if (w == null || !w.status().equals(WorkflowStatus.SLEEPING.name())) {
+            return false;
+        }
+        instances.put(workflowId, new WorkflowRecord(workflowId, w.workflowType(), WorkflowStatus.RUNNING.name(),
+                owner, leaseExpiresAt, Instant.now().toEpochMilli()));
+        return true;
+    }
+
+    @Override
+    public synchronized void renewWorkflowLeases(String owner, Collection<String> workflowIds, long leaseExpiresAt) {
+        for (String workflowId : workflowIds) {
+            instances.computeIfPresent(workflowId, (id, w) ->
+                    w.status().equals(WorkflowStatus.RUNNING.name()) && owner.equals(w.owner())
+                            ? new WorkflowRecord(id, w.workflowType(), w.status(), owner, leaseExpiresAt, w.updatedAt())
+                            : w);
+        }
+    }
+
+    @Override
+    public synchronized void updateWorkflow(String workflowId, WorkflowStatus status) {
+        instances.computeIfPresent(workflowId, (id, w) -> new WorkflowRecord(id, w.workflowType(),
+                status.name(), null, 0, Instant.now().toEpochMilli()));
+    }
+
+    @Override
+    public WorkflowRecord getWorkflow(String workflowId) {
+        return instances.get(workflowId);
+    }
+}
@@ -0,0 +1,637 @@
+package engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only {@link StateStore} backed by memory-mapped segment files.
+ *
+ * Every step event is appended as a length-prefixed, checksummed record to the
+ * active segment. An in-memory index maps (workflowId, stepId) to the offset of
+ * the latest record for that step; it is rebuilt by scanning the segments on
+ * startup. A torn record at the tail of a segment (crash mid-append) fails its
+ * checksum and is treated as the end of that segment.
+ *
+ * Record layout: {@code [int bodyLength][int crc32(body)][body]} where the body
+ * is {@code [byte status][long updatedAt][int len][workflowId][int len][stepId]
+ * [int codec][int len | -1][payload]}. The codec field is only present when the
+ * status byte carries {@code CODEC_FLAG}; records written before step codecs
+ * lack it and read as JSON. Records of leased steps carry {@code LEASE_FLAG}
+ * and continue with {@code [int len | -1][owner][long leaseExpiresAt]}; records
+ * of steps that have failed attempts carry {@code RETRY_FLAG} and continue
+ * with {@code [int attempts][int len | -1][lastError]}; versioned records
+ * carry {@code VERSION_FLAG} and end with {@code [long version]}. A record
+ * with {@code RESET_FLAG} starts a new run of its workflow: replay forgets
+ * every earlier record of that workflow. Segment files are pre-sized, so a
+ * zero length marks the end of the written region.
+ *
+ * Lease renewals are not journaled. They live in memory beside the record
+ * they extend and are dropped once that record is superseded; after a
+ * restart the journaled lease applies, and its owner is gone anyway.
+ *
+ * This store journals steps only: it implements neither {@link TimerStore}
+ * nor {@link WorkflowStore}. Under a {@link WorkflowRuntime}, a durable sleep
+ * therefore parks the workflow's thread until it wakes instead of unloading
+ * it; {@code submit} and {@code startWorkers} fail, since there is no queue;
+ * and nothing resumes in-flight workflows after a crash, so the caller must
+ * start them again to replay their steps. {@link RetentionManager} does not
+ * apply, and {@link #compact()} is the only way to reclaim space.
+ */
+public class JournalStore implements StateStore {
+
+    public enum FsyncPolicy {
+        /** force the mapped pages to disk before every write returns */
+        ALWAYS,
+        /** force on a background timer; a crash loses at most one interval */
+        PERIODIC,
+        /** leave write-back to the OS page cache */
+        NEVER
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_FSYNC_INTERVAL_MS = 100;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_SIZE = 8;
+    private static final StepStatus[] STATUSES = StepStatus.values();
+    private static final int CODEC_FLAG = 0x80;
+    private static final int LEASE_FLAG = 0x40;
+    private static final int RETRY_FLAG = 0x20;
+    private static final int VERSION_FLAG = 0x10;
+    private static final int RESET_FLAG = 0x08;
+    private static final int STATUS_MASK = 0x07;
+    private static final Logger log = LoggerFactory.getLogger(JournalStore.class);
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int writePosition;
+
+        Segment(long id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+    }
+
+    private record Location(Segment segment, int position) {
+    }
+
+    // A renewed lease, valid only while its step's latest record is still at this location
+    private record Renewal(Location location, long leaseExpiresAt) {
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Map<String, Map<String, Location>> index = new ConcurrentHashMap<>();
+    private final Map<StepKey, Renewal> renewals = new ConcurrentHashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private final ScheduledExecutorService flusher;
+    private Segment active;
+
+    public JournalStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, FsyncPolicy.ALWAYS, DEFAULT_FSYNC_INTERVAL_MS);
+    }
+
+    public JournalStore(Path directory, int segmentSize, FsyncPolicy fsyncPolicy, long fsyncIntervalMs)
+            throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        Files.createDirectories(directory);
+        recover();
+
+        if (fsyncPolicy == FsyncPolicy.PERIODIC) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "journal-fsync");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::forceActive, fsyncIntervalMs, fsyncIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    // ---------------------------------------------------------------- recovery
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+
+        int records = 0;
+        for (Path file : files) {
+            Segment segment = map(segmentId(file), file, 0);
+            records += scan(segment);
+            segments.add(segment);
+        }
+
+        if (segments.isEmpty()) {
+            active = createSegment(0, segmentSize);
+        } else {
+            active = segments.get(segments.size() - 1);
+        }
+        log.info("Journal {} recovered {} records from {} segments", directory, records, segments.size());
+    }
+
+    private int scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        int records = 0;
+        CRC32 crc = new CRC32();
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.slice(position + HEADER_SIZE, length));
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                log.warn("Torn record in segment {} at offset {}, truncating", segment.path, position);
+                break;
+            }
+            ByteBuffer body = buffer.slice(position + HEADER_SIZE, length);
+            boolean reset = (body.get() & RESET_FLAG) != 0;
+            body.getLong(); // updatedAt
+            String workflowId = readString(body);
+            String stepId = readString(body);
+            if (reset) {
+                index.put(workflowId, new ConcurrentHashMap<>());
+            }
+            steps(workflowId).put(stepId, new Location(segment, position));
+            position += HEADER_SIZE + length;
+            records++;
+        }
+        segment.writePosition = position;
+        return records;
+    }
+
+    // ------------------------------------------------------------------ reads
+
+    @Override
+    public StepRecord getStep(String workflowId, String stepId) {
+        Map<String, Location> steps = index.get(workflowId);
+        if (steps == null) {
+            return null;
+        }
+        Location location = steps.get(stepId);
+        return location == null ? null : renewed(stepId, location);
+    }
+
+    @Override
+    public Map<String, StepRecord> loadHistory(String workflowId) {
+        Map<String, StepRecord> history = new HashMap<>();
+        Map<String, Location> steps = index.get(workflowId);
+        if (steps != null) {
+            steps.forEach((stepId, location) -> history.put(stepId, renewed(stepId, location)));
+        }
+        return history;
+    }
+
+    private StepRecord renewed(String stepId, Location location) {
+        StepRecord record = read(location);
+        Renewal renewal = renewals.get(new StepKey(record.getWorkflowId(), stepId));
+        if (renewal == null || renewal.location() != location) {
+            return record;
+        }
+        return new StepRecord(record.getWorkflowId(), stepId, record.getStatus(), record.getPayload(),
+                record.getCodec(), record.getUpdatedAt(), record.getOwner(), renewal.leaseExpiresAt(),
+                record.getAttempts(), record.getLastError(), record.getVersion());
+    }
+
+    private StepRecord read(Location location) {
+        ByteBuffer buffer = location.segment().buffer;
+        int length = buffer.getInt(location.position());
+        ByteBuffer body = buffer.slice(location.position() + HEADER_SIZE, length);
+        int header = body.get() & 0xFF;
+        StepStatus status = STATUSES[header & STATUS_MASK];
+        long updatedAt = body.getLong();
+        String workflowId = readString(body);
+        String stepId = readString(body);
+        int codec = (header & CODEC_FLAG) != 0 ? body.getInt() : StepCodecs.JSON;
+        byte[] payload = readBytes(body);
+        String owner = null;
+        long leaseExpiresAt = 0;
+        if ((header & LEASE_FLAG) != 0) {
+            owner = readString(body);
+            leaseExpiresAt = body.getLong();
+        }
+        int attempts = 0;
+        String lastError = null;
+        if ((header & RETRY_FLAG) != 0) {
+            attempts = body.getInt();
+            lastError = readString(body);
+        }
+        long version = (header & VERSION_FLAG) != 0 ? body.getLong() : 0;
+        return new StepRecord(workflowId, stepId, status.name(), payload, codec, updatedAt,
+                owner, leaseExpiresAt, attempts, lastError, version);
+    }
+
+    // ----------------------------------------------------------------- writes
+
+    @Override
+    public void insertInProgress(String workflowId, String stepId, String owner, long leaseExpiresAt)
+            throws SQLException {
+        writeLock.lock();
+        try {
+            StepRecord previous = getStep(workflowId, stepId);
+            append(List.of(StepRecord.claimed(workflowId, stepId, owner, leaseExpiresAt, previous)));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // The write lock makes the check and the append one atomic step
+    @Override
+    public long claimStep(String workflowId, String stepId, String owner, long leaseExpiresAt,
+                          StepRecord expected) throws SQLException {
+        writeLock.lock();
+        try {
+            StepRecord current = getStep(workflowId, stepId);
+            boolean claimable = expected == null
+                    ? current == null
+                    : current != null
+                            && current.getStatus().equals(StepStatus.IN_PROGRESS.name())
+                            && current.getVersion() == expected.getVersion()
+                            && Objects.equals(current.getOwner(), expected.getOwner())
+                            && (current.getOwner() == null
+                                    || current.getLeaseExpiresAt() < Instant.now().toEpochMilli());
+            if (!claimable) {
+                return -1;
+            }
+            StepRecord claimed = StepRecord.claimed(workflowId, stepId, owner, leaseExpiresAt, current);
+            append(List.of(claimed));
+            return claimed.getVersion();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Renewals stay in memory: appending one per heartbeat would grow the journal without bound
+    @Override
+    public void renewLeases(String owner, Collection<StepKey> steps, long leaseExpiresAt) {
+        writeLock.lock();
+        try {
+            for (StepKey key : steps) {
+                Map<String, Location> workflow = index.get(key.workflowId());
+                Location location = workflow == null ? null : workflow.get(key.stepId());
+                if (location == null) {
+                    continue;
+                }
+                StepRecord current = read(location);
+                if (current.getStatus().equals(StepStatus.IN_PROGRESS.name()) && owner.equals(current.getOwner())) {
+                    renewals.put(key, new Renewal(location, leaseExpiresAt));
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean markCompleted(String workflowId, String stepId, byte[] payload, int codec, String owner,
+                                 long version) throws SQLException {
+        return update(workflowId, stepId, owner, version, previous -> new StepRecord(workflowId, stepId, StepStatus.COMPLETED.name(),
+                payload, codec, Instant.now().toEpochMilli(), null, 0,
+                previous.getAttempts(), previous.getLastError(), previous.getVersion() + 1));
+    }
+
+    @Override
+    public boolean markFailed(String workflowId, String stepId, int attempts, String error, String owner,
+                              long version) throws SQLException {
+        byte[] output = error == null ? null : error.getBytes(StandardCharsets.UTF_8);
+        return update(workflowId, stepId, owner, version, previous -> new StepRecord(workflowId, stepId, StepStatus.FAILED.name(),
+                output, StepCodecs.JSON, Instant.now().toEpochMilli(), null, 0, attempts, error,
+                previous.getVersion() + 1));
+    }
+
+    @Override
+    public boolean markRetrying(String workflowId, String stepId, int attempts, String error, long retryAt,
+                                String owner, long version) throws SQLException {
+        return update(workflowId, stepId, owner, version, previous -> new StepRecord(workflowId, stepId, StepStatus.IN_PROGRESS.name(),
+                null, StepCodecs.JSON, Instant.now().toEpochMilli(), null, retryAt, attempts, error,
+                previous.getVersion() + 1));
+    }
+
+    private boolean update(String workflowId, String stepId, String owner, long version,
+                           UnaryOperator<StepRecord> next) throws SQLException {
+        writeLock.lock();
+        try {
+            // Same contract as SQLiteStore's UPDATE: unknown and fenced-off steps are left alone
+            StepRecord previous = getStep(workflowId, stepId);
+            if (previous == null || !previous.isHeldBy(owner, version)) {
+                return false;
+            }
+            append(List.of(next.apply(previous)));
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void batch(List<StepRecord> records) throws SQLException {
+        append(records);
+    }
+
+    /**
+     * The first record carries the reset flag, so a crash leaves either the
+     * old run or the new one. Pending timers are not this store's concern.
+     */
+    @Override
+    public void replaceHistory(String workflowId, List<StepRecord> records) throws SQLException {
+        if (records.isEmpty()) {
+            throw new IllegalArgumentException("A new run needs at least one record");
+        }
+        append(records, true);
+    }
+
+    // No timers here, so pruning steps is the same reset
+    @Override
+    public void replaceSteps(String workflowId, List<StepRecord> records) throws SQLException {
+        replaceHistory(workflowId, records);
+    }
+
+    private void append(List<StepRecord> records) throws SQLException {
+        append(records, false);
+    }
+
+    private void append(List<StepRecord> records, boolean reset) throws SQLException {
+        List<byte[]> encoded = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            encoded.add(encode(records.get(i), reset && i == 0));
+        }
+
+        writeLock.lock();
+        try {
+            Segment first = active;
+            int firstPosition = active.writePosition;
+            if (reset) {
+                String workflowId = records.get(0).getWorkflowId();
+                index.put(workflowId, new ConcurrentHashMap<>());
+                renewals.keySet().removeIf(key -> key.workflowId().equals(workflowId));
+            }
+            for (int i = 0; i < records.size(); i++) {
+                StepRecord record = records.get(i);
+                Location location = write(encoded.get(i));
+                steps(record.getWorkflowId()).put(record.getStepId(), location);
+                renewals.remove(new StepKey(record.getWorkflowId(), record.getStepId()));
+            }
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                // roll() already forced any segment this batch filled up
+                int from = first == active ? firstPosition : 0;
+                active.buffer.force(from, active.writePosition - from);
+            }
+        } catch (IOException e) {
+            throw new SQLException("Journal append failed", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private Location write(byte[] record) throws IOException {
+        if (active.remaining() < record.length) {
+            roll(record.length);
+        }
+        int position = active.writePosition;
+        active.buffer.put(position, record);
+        active.writePosition += record.length;
+        return new Location(active, position);
+    }
+
+    private void roll(int minimumSize) throws IOException {
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            active.buffer.force();
+        }
+        active = createSegment(active.id + 1, Math.max(segmentSize, minimumSize));
+    }
+
+    private void forceActive() {
+        writeLock.lock();
+        try {
+            active.buffer.force();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // ------------------------------------------------------------- compaction
+
+    /**
+     * Rewrites the latest record of every step into fresh segments and deletes
+     * the old ones. Superseded IN_PROGRESS records are dropped.
+     *
+     * Crash-safe without a manifest: old segments are only deleted after the
+     * new ones are forced, and replaying both yields the same index because
+     * the new segments have higher IDs and hold identical records.
+     *
+     * @return bytes reclaimed on disk
+     */
+    public long compact() throws IOException {
+        writeLock.lock();
+        try {
+            List<Segment> old = new ArrayList<>(segments);
+            long before = 0;
+            for (Segment segment : old) {
+                before += segment.buffer.capacity();
+            }
+
+            active = createSegment(active.id + 1, segmentSize);
+            Segment firstNew = active;
+            for (Map.Entry<String, Map<String, Location>> workflow : index.entrySet()) {
+                // A reset record is copied first, or replay would forget the records copied before it
+                List<Map.Entry<String, Location>> entries = new ArrayList<>(workflow.getValue().entrySet());
+                entries.sort(Comparator.comparing((Map.Entry<String, Location> entry) -> !isReset(entry.getValue())));
+                for (Map.Entry<String, Location> entry : entries) {
+                    Location location = entry.getValue();
+                    ByteBuffer source = location.segment().buffer;
+                    int length = HEADER_SIZE + source.getInt(location.position());
+                    byte[] record = new byte[length];
+                    source.get(location.position(), record);
+                    Location copy = write(record);
+                    entry.setValue(copy);
+                    // Renewals follow their record
+                    renewals.computeIfPresent(new StepKey(workflow.getKey(), entry.getKey()),
+                            (key, renewal) -> new Renewal(copy, renewal.leaseExpiresAt()));
+                }
+            }
+
+            long after = 0;
+            for (Segment segment : segments.subList(segments.indexOf(firstNew), segments.size())) {
+                segment.buffer.force();
+                after += segment.buffer.capacity();
+            }
+            for (Segment segment : old) {
+                segments.remove(segment);
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            }
+            log.info("Compacted journal {}: {} segments -> {}", directory, old.size(), segments.size());
+            return before - after;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------- helpers
+
+    private Map<String, Location> steps(String workflowId) {
+        return index.computeIfAbsent(workflowId, id -> new ConcurrentHashMap<>());
+    }
+
+    private Segment createSegment(long id, int size) throws IOException {
+        Path path = directory.resolve(String.format("%016d%s", id, SEGMENT_SUFFIX));
+        Segment segment = map(id, path, size);
+        segments.add(segment);
+        return segment;
+    }
+
+    private static Segment map(long id, Path path, int size) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long capacity = Math.max(size, channel.size());
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        return new Segment(id, path, channel, buffer);
+    }
+
+    private static long segmentId(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static boolean isReset(Location location) {
+        return (location.segment().buffer.get(location.position() + HEADER_SIZE) & RESET_FLAG) != 0;
+    }
+
+    private static byte[] encode(StepRecord record, boolean reset) {
+        byte[] workflowId = record.getWorkflowId().getBytes(StandardCharsets.UTF_8);
+        byte[] stepId = record.getStepId().getBytes(StandardCharsets.UTF_8);
+        byte[] output = record.getPayload();
+        byte[] owner = record.getOwner() == null ? null : record.getOwner().getBytes(StandardCharsets.UTF_8);
+        boolean leased = record.getLeaseExpiresAt() > 0;
+        byte[] lastError = record.getLastError() == null
+                ? null : record.getLastError().getBytes(StandardCharsets.UTF_8);
+        boolean retried = record.getAttempts() > 0;
+        boolean versioned = record.getVersion() > 0;
+
+        int bodyLength = 1 + 8 + 4 + workflowId.length + 4 + stepId.length + 4 + 4
+                + (output == null ? 0 : output.length)
+                + (leased ? 4 + (owner == null ? 0 : owner.length) + 8 : 0)
+                + (retried ? 4 + 4 + (lastError == null ? 0 : lastError.length) : 0)
+                + (versioned ? 8 : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodyLength);
+        buffer.putInt(bodyLength);
+        buffer.putInt(0); // crc, filled in below
+        buffer.put((byte) (StepStatus.valueOf(record.getStatus()).ordinal() | CODEC_FLAG
+                | (leased ? LEASE_FLAG : 0) | (retried ? RETRY_FLAG : 0) | (versioned ? VERSION_FLAG : 0)
+                | (reset ? RESET_FLAG : 0)));
+        buffer.putLong(record.getUpdatedAt());
+        buffer.putInt(workflowId.length).put(workflowId);
+        buffer.putInt(stepId.length).put(stepId);
+        buffer.putInt(record.getCodec());
+        if (output == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(output.length).put(output);
+        }
+        if (leased) {
+            if (owner == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(owner.length).put(owner);
+            }
+            buffer.putLong(record.getLeaseExpiresAt());
+        }
+        if (retried) {
+            buffer.putInt(record.getAttempts());
+            if (lastError == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(lastError.length).put(lastError);
+            }
+        }
+        if (versioned) {
+            buffer.putLong(record.getVersion());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, bodyLength);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer.array();
+    }
+
+    private static String readString(ByteBuffer body) {
+        byte[] bytes = readBytes(body);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer body) {
+        int length = body.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        writeLock.lock();
+        try {
+            if (fsyncPolicy != FsyncPolicy.NEVER) {
+                active.buffer.force();
+            }
+            for (Segment segment : segments) {
+                segment.channel.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close journal {}", directory, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
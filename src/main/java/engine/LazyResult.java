@@ -0,0 +1,45 @@
+package engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Result of {@link DurableContext#stepLazy}. On replay the stored output is
+ * only read and decoded by the first {@link #get()}, so large results that
+ * the workflow never looks at are never materialized.
+ */
+public class LazyResult<T> {
+
+    interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    private Loader<T> loader;
+    private T value;
+
+    LazyResult(Loader<T> loader) {
+        this.loader = loader;
+    }
+
+    static <T> LazyResult<T> of(T value) {
+        LazyResult<T> result = new LazyResult<>(null);
+        result.value = value;
+        return result;
+    }
+
+    public synchronized T get() {
+        if (loader != null) {
+            try {
+                value = loader.load();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to load step result", e);
+            }
+            loader = null;
+        }
+        return value;
+    }
+
+    public synchronized boolean isLoaded() {
+        return loader == null;
+    }
+}
@@ -0,0 +1,202 @@
+package engine;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Owns the leases on running steps for one worker.
+ *
+ * A step is claimed with an owner ID and a lease expiry. While it runs, a
+ * background heartbeat renews the leases of all of this worker's running
+ * steps in one store call. A long step is therefore never mistaken for a
+ * dead one. A step whose worker died stops being renewed, and any worker
+ * may take it over once its lease has expired, roughly one heartbeat
+ * interval plus the lease slack after the crash.
+ *
+ * On a {@link WorkflowStore} the same heartbeat renews the leases of the
+ * workflow instances this worker has claimed.
+ *
+ * Heartbeats of all managers are timed by one shared daemon thread, which
+ * only triggers them: each renewal runs on its own virtual thread, so a slow
+ * store delays nobody else's. A renewal still running at the next tick
+ * skips that tick, and one slower than the lease leaves room for is logged,
+ * since other workers may already have taken its steps over. A manager
+ * schedules its heartbeat when it acquires its first lease and cancels it at
+ * the first tick that finds nothing to renew, so an idle manager holds no
+ * thread and a context that is never closed leaks nothing.
+ */
+public class LeaseManager implements AutoCloseable {
+
+    public static final Duration DEFAULT_LEASE_DURATION = Duration.ofSeconds(3);
+    public static final Duration DEFAULT_HEARTBEAT_INTERVAL = Duration.ofSeconds(1);
+
+    private static final Logger log = LoggerFactory.getLogger(LeaseManager.class);
+
+    private static final ScheduledExecutorService HEARTBEAT = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "lease-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final StateStore store;
+    private final String ownerId;
+    private final long leaseMs;
+    private final Set<StepKey> running = ConcurrentHashMap.newKeySet();
+    private final Set<String> workflows = ConcurrentHashMap.newKeySet();
+    private final long heartbeatMs;
+    private final AtomicBoolean renewing = new AtomicBoolean();
+    // Guarded by this; null while no lease is held
+    private ScheduledFuture<?> heartbeat;
+    private boolean closed;
+
+    public LeaseManager(StateStore store) {
+        this(store, DEFAULT_LEASE_DURATION, DEFAULT_HEARTBEAT_INTERVAL);
+    }
+
+    public LeaseManager(StateStore store, Duration leaseDuration, Duration heartbeatInterval) {
+        if (heartbeatInterval.compareTo(leaseDuration) >= 0) {
+            throw new IllegalArgumentException("Heartbeat interval must be shorter than the lease");
+        }
+        this.store = store;
+        this.ownerId = UUID.randomUUID().toString();
+        this.leaseMs = leaseDuration.toMillis();
+        this.heartbeatMs = heartbeatInterval.toMillis();
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    /**
+     * Starts renewing the lease of a step this worker is about to run and
+     * returns the first expiry to persist with the claim.
+     */
+    long acquire(StepKey step) {
+        running.add(step);
+        startHeartbeat();
+        return leaseExpiry();
+    }
+
+    void release(StepKey step) {
+        running.remove(step);
+    }
+
+    // Same for a workflow instance this worker claims
+    long acquireWorkflow(String workflowId) {
+        workflows.add(workflowId);
+        startHeartbeat();
+        return leaseExpiry();
+    }
+
+    void releaseWorkflow(String workflowId) {
+        workflows.remove(workflowId);
+    }
+
+    // Expiry for a lease taken now
+    long leaseExpiry() {
+        return Instant.now().toEpochMilli() + leaseMs;
+    }
+
+    boolean isRunningHere(StepKey step) {
+        return running.contains(step);
+    }
+
+    /**
+     * Whether an IN_PROGRESS record may be taken over. Rows written before
+     * leases existed have no expiry and fall back to their last update time.
+     */
+    boolean isExpired(StepRecord record, long now) {
+        long expiresAt = record.getLeaseExpiresAt() > 0
+                ? record.getLeaseExpiresAt()
+                : record.getUpdatedAt() + leaseMs;
+        // Same comparison as the stores' take-over checks (lease_expires_at < now)
+        return expiresAt < now;
+    }
+
+    private synchronized void startHeartbeat() {
+        if (heartbeat == null && !closed) {
+            heartbeat = HEARTBEAT.scheduleWithFixedDelay(this::tick, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Acquire adds before it starts the heartbeat, so a lease taken meanwhile is never left unrenewed
+    private synchronized boolean stopIfIdle() {
+        if (running.isEmpty() && workflows.isEmpty() && heartbeat != null) {
+            heartbeat.cancel(false);
+            heartbeat = null;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized boolean isHeartbeating() {
+        return heartbeat != null;
+    }
+
+    // Runs on the shared timer thread, so it must never block
+    private void tick() {
+        if (stopIfIdle()) {
+            return;
+        }
+        if (!renewing.compareAndSet(false, true)) {
+            log.warn("Lease renewal of worker {} still running after {} ms; skipping a heartbeat",
+                    ownerId, heartbeatMs);
+            return;
+        }
+        Thread.ofVirtual().name("lease-renewal").start(() -> {
+            try {
+                renew();
+            } finally {
+                renewing.set(false);
+            }
+        });
+    }
+
+    private void renew() {
+        long started = System.nanoTime();
+        if (!running.isEmpty()) {
+            List<StepKey> steps = new ArrayList<>(running);
+            try {
+                store.renewLeases(ownerId, steps, leaseExpiry());
+            } catch (Exception e) {
+                log.warn("Failed to renew {} step leases", steps.size(), e);
+            }
+        }
+        if (!workflows.isEmpty() && store instanceof WorkflowStore workflowStore) {
+            List<String> ids = new ArrayList<>(workflows);
+            try {
+                workflowStore.renewWorkflowLeases(ownerId, ids, leaseExpiry());
+            } catch (Exception e) {
+                log.warn("Failed to renew {} workflow leases", ids.size(), e);
+            }
+        }
+        // Leases renewed a tick ago expire leaseMs - heartbeatMs after this renewal started
+        long tookMs = (System.nanoTime() - started) / 1_000_000;
+        if (tookMs >= leaseMs - heartbeatMs) {
+            log.warn("Lease renewal of worker {} took {} ms, longer than the {} ms its {} ms leases leave for it; "
+                    + "other workers may have taken its steps over", ownerId, tookMs, leaseMs - heartbeatMs, leaseMs);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+            heartbeat = null;
+        }
+    }
+}
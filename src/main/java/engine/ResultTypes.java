@@ -0,0 +1,29 @@
+package engine;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Process-wide Jackson type factory for step result types.
+ *
+ * Readers and writers for each resolved type are built once and cached by
+ * the codec that uses them (see {@link StepCodecs}); ObjectReader and
+ * ObjectWriter are immutable and thread-safe, so every context shares them.
+ */
+final class ResultTypes {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+    static final JavaType OBJECT = MAPPER.constructType(Object.class);
+
+    private ResultTypes() {
+    }
+
+    static JavaType of(Class<?> type) {
+        return MAPPER.constructType(type);
+    }
+
+    static JavaType of(TypeReference<?> type) {
+        return MAPPER.constructType(type);
+    }
+}
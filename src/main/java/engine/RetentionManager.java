@@ -0,0 +1,246 @@
+package engine;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a {@link SQLiteStore} from growing forever.
+ *
+ * Workflow instances that finished (COMPLETED or FAILED) longer than the
+ * retention period ago are copied, steps and all, to gzipped JSON-lines
+ * archive files and then deleted from the database. Each batch of
+ * {@link #setBatchSize(int) batchSize} instances is archived and fsynced
+ * before its rows are deleted in one short write transaction, so other
+ * writers are never held up for long and a crash at worst archives an
+ * instance twice.
+ *
+ * Only instances recorded in the {@code workflows} table are seen, that is
+ * those run by a {@link WorkflowRuntime} or recorded through the
+ * {@link WorkflowStore} calls. Steps written through a bare
+ * {@link DurableContext} have no instance row and are never archived or
+ * deleted.
+ *
+ * Deleted rows only become free pages. {@code PRAGMA incremental_vacuum}
+ * returns a bounded number of them to the file system after each sweep, a
+ * short transaction at a time;
+ * this needs {@code auto_vacuum=INCREMENTAL}, which {@link SQLiteStore} sets
+ * on new databases. Older databases reuse freed pages but keep their size
+ * until a one-off {@code VACUUM}.
+ *
+ * Payloads offloaded to a {@link BlobStore} are archived as references and
+ * stay in the blob store. Interned step IDs ({@code step_keys}) are shared
+ * by all instances and never deleted.
+ */
+public class RetentionManager implements AutoCloseable {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_VACUUM_PAGES = 1_000;
+
+    private static final Logger log = LoggerFactory.getLogger(RetentionManager.class);
+
+    private final SQLiteStore store;
+    private final Path archiveDirectory;
+    private final long retentionMs;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int vacuumPages = DEFAULT_VACUUM_PAGES;
+    private ScheduledExecutorService scheduler;
+    private final AtomicInteger archiveFiles = new AtomicInteger();
+
+    private final AtomicLong archivedWorkflows = new AtomicLong();
+    private final AtomicLong deletedSteps = new AtomicLong();
+    private final AtomicLong archivedBytes = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    public RetentionManager(SQLiteStore store, Path archiveDirectory, Duration retention) throws IOException {
+        this.store = store;
+        this.archiveDirectory = Files.createDirectories(archiveDirectory);
+        this.retentionMs = retention.toMillis();
+    }
+
+    // Finished instances archived and deleted per write transaction
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be >= 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    // Most free pages returned to the file system per sweep
+    public void setVacuumPages(int vacuumPages) {
+        this.vacuumPages = vacuumPages;
+    }
+
+    /**
+     * Runs {@link #sweep()} and {@link #vacuum()} every {@code interval} on a
+     * background thread.
+     */
+    public synchronized void start(Duration interval) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Retention already started");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "retention");
+            t.setDaemon(true);
+            return t;
+        });
+        long intervalMs = interval.toMillis();
+        scheduler.scheduleWithFixedDelay(this::runOnce, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void runOnce() {
+        try {
+            sweep();
+            vacuum();
+        } catch (Exception e) {
+            log.warn("Retention sweep failed", e);
+        }
+    }
+
+    /**
+     * Archives and deletes every instance that is past retention now, one
+     * batch at a time. Returns the number of instances deleted.
+     */
+    public long sweep() throws SQLException, IOException {
+        long cutoff = Instant.now().toEpochMilli() - retentionMs;
+        long started = System.nanoTime();
+        long workflows = 0;
+        long steps = 0;
+        while (true) {
+            List<WorkflowRecord> batch = store.finishedWorkflows(cutoff, batchSize);
+            if (batch.isEmpty()) {
+                break;
+            }
+            archive(batch);
+            // Instances restarted since they were selected are skipped; they stay in the archive file too
+            SQLiteStore.Deletion deleted = store.deleteWorkflows(batch);
+            workflows += deleted.workflows();
+            steps += deleted.steps();
+            if (batch.size() < batchSize) {
+                break;
+            }
+        }
+        archivedWorkflows.addAndGet(workflows);
+        deletedSteps.addAndGet(steps);
+        if (workflows > 0) {
+            log.info("Archived {} workflows ({} steps) in {} ms",
+                    workflows, steps, (System.nanoTime() - started) / 1_000_000);
+        }
+        return workflows;
+    }
+
+    /**
+     * Returns up to {@code vacuumPages} free pages to the file system.
+     * Returns the number of bytes reclaimed.
+     */
+    public long vacuum() throws SQLException {
+        if (!store.incrementalVacuumEnabled()) {
+            return 0;
+        }
+        long reclaimed = store.incrementalVacuum(vacuumPages);
+        reclaimedBytes.addAndGet(reclaimed);
+        if (reclaimed > 0) {
+            log.info("Incremental vacuum reclaimed {} bytes", reclaimed);
+        }
+        return reclaimed;
+    }
+
+    // One file per batch, written aside and moved into place once it is on disk
+    private void archive(List<WorkflowRecord> batch) throws SQLException, IOException {
+        String name = String.format("workflows-%d-%04d.jsonl.gz",
+                Instant.now().toEpochMilli(), archiveFiles.incrementAndGet());
+        Path target = archiveDirectory.resolve(name);
+        Path partial = archiveDirectory.resolve(name + ".partial");
+        try (OutputStream out = Files.newOutputStream(partial);
+             BufferedWriter writer = new BufferedWriter(
+                     new OutputStreamWriter(new GZIPOutputStream(out), StandardCharsets.UTF_8))) {
+            for (WorkflowRecord workflow : batch) {
+                writer.write(ResultTypes.MAPPER.writeValueAsString(entry(workflow)));
+                writer.newLine();
+            }
+        }
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+        archivedBytes.addAndGet(Files.size(target));
+    }
+
+    // Step payloads are written as stored: base64 bytes plus the codec that reads them
+    private Map<String, Object> entry(WorkflowRecord workflow) throws SQLException {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("workflowId", workflow.workflowId());
+        entry.put("workflowType", workflow.workflowType());
+        entry.put("status", workflow.status());
+        entry.put("updatedAt", workflow.updatedAt());
+        List<Map<String, Object>> steps = new ArrayList<>();
+        for (StepRecord step : new TreeMap<>(store.loadHistory(workflow.workflowId())).values()) {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("stepId", step.getStepId());
+            fields.put("status", step.getStatus());
+            fields.put("codec", step.getCodec());
+            fields.put("payload", step.getPayload());
+            fields.put("updatedAt", step.getUpdatedAt());
+            fields.put("attempts", step.getAttempts());
+            fields.put("lastError", step.getLastError());
+            steps.add(fields);
+        }
+        entry.put("steps", steps);
+        return entry;
+    }
+
+    // Instances archived and then deleted; one restarted in between is not counted
+    public long archivedWorkflows() {
+        return archivedWorkflows.get();
+    }
+
+    public long deletedSteps() {
+        return deletedSteps.get();
+    }
+
+    // Compressed size of all archive files written
+    public long archivedBytes() {
+        return archivedBytes.get();
+    }
+
+    // Bytes returned to the file system by incremental vacuum
+    public long reclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package engine;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * How often and how fast a failing step is retried.
+ *
+ * The n-th retry waits {@code initialBackoff * multiplier^(n-1)}, capped at
+ * {@code maxBackoff}, with the upper half of that delay randomized so that
+ * steps failing together against the same downstream do not retry in
+ * lockstep. Only exceptions accepted by the classifier are retried; any
+ * other exception fails the step at once.
+ */
+public final class RetryPolicy {
+
+    // Fail on the first exception
+    public static final RetryPolicy NONE = new RetryPolicy(1, Duration.ZERO, Duration.ZERO, 1.0);
+
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final double multiplier;
+    private final Predicate<Throwable> retryable;
+
+    public RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff, double multiplier) {
+        this(maxAttempts, initialBackoff.toMillis(), maxBackoff.toMillis(), multiplier, e -> true);
+    }
+
+    private RetryPolicy(int maxAttempts, long initialBackoffMs, long maxBackoffMs, double multiplier,
+                        Predicate<Throwable> retryable) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be >= 1");
+        }
+        if (multiplier < 1.0) {
+            throw new IllegalArgumentException("multiplier must be >= 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = Math.max(initialBackoffMs, maxBackoffMs);
+        this.multiplier = multiplier;
+        this.retryable = retryable;
+    }
+
+    /**
+     * Copy of this policy that only retries exceptions matching
+     * {@code classifier}.
+     */
+    public RetryPolicy retryOn(Predicate<Throwable> classifier) {
+        return new RetryPolicy(maxAttempts, initialBackoffMs, maxBackoffMs, multiplier, classifier);
+    }
+
+    // Copy of this policy that only retries the given exception types and their subclasses
+    @SafeVarargs
+    public final RetryPolicy retryOn(Class<? extends Throwable>... types) {
+        return retryOn(e -> {
+            for (Class<? extends Throwable> type : types) {
+                if (type.isInstance(e)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    boolean shouldRetry(Throwable error, int attempt) {
+        return attempt < maxAttempts && retryable.test(error);
+    }
+
+    // Delay before the attempt after {@code attempt}, jittered
+    long backoffMs(int attempt) {
+        double backoff = initialBackoffMs * Math.pow(multiplier, attempt - 1);
+        long capped = (long) Math.min(backoff, maxBackoffMs);
+        long half = capped / 2;
+        return half + ThreadLocalRandom.current().nextLong(capped - half + 1);
+    }
+}
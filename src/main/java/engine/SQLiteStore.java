@@ -1,123 +1,968 @@
 package engine;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
-public class SQLiteStore {
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-    private final Connection connection;
-    private final Object lock = new Object();
+public class SQLiteStore implements StateStore, TimerStore, WorkflowStore {
 
+    /**
+     * What a write has survived when the store call returns. Every level
+     * funnels writes through the same group-commit writer, so concurrent
+     * writes always share transactions; the levels differ in when a write is
+     * acknowledged and what that transaction's commit syncs. Claims
+     * ({@link #claimStep}, {@link #claimWorkflows}) and fenced finishing
+     * writes report an outcome, so under every level the caller waits for
+     * their commit.
+     */
+    public enum Durability {
+        /**
+         * returns after the batch holding the write has committed and the WAL
+         * has been fsynced ({@code synchronous=FULL}); survives power loss
+         */
+        FSYNC_EACH_BATCH("FULL"),
+        /**
+         * returns after the batch has committed to the WAL, which is only
+         * fsynced at checkpoints ({@code synchronous=NORMAL}); survives a
+         * process crash, while power loss rolls back to the last checkpoint
+         */
+        WAL_NORMAL("NORMAL"),
+        /**
+         * returns once the write is queued in memory; it commits in the
+         * background as under WAL_NORMAL. A process crash also loses up to
+         * {@code maxBatchSize} queued writes
+         */
+        BUFFERED("NORMAL");
+
+        private final String synchronous;
+
+        Durability(String synchronous) {
+            this.synchronous = synchronous;
+        }
+    }
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    public static final long DEFAULT_MAX_LINGER_MS = 0;
+    // Pages one incremental-vacuum transaction frees while holding the writer
+    static final int VACUUM_PAGES_PER_TRANSACTION = 100;
+
+    private static final Logger log = LoggerFactory.getLogger(SQLiteStore.class);
+
+    // PRAGMA user_version of the integer-keyed steps layout; older databases are migrated on open
+    static final int COMPACT_SCHEMA = 2;
+
+    // Steps are keyed by interned integer IDs; these resolve them from the string IDs
+    private static final String WORKFLOW_KEY = "(SELECT id FROM workflow_keys WHERE workflow_id=?)";
+    private static final String STEP_KEY = "(SELECT id FROM step_keys WHERE step_id=?)";
+    private static final int IN_PROGRESS = StepStatus.IN_PROGRESS.ordinal();
+
+    private static final String INTERN_WORKFLOW =
+            "INSERT INTO workflow_keys (workflow_id) VALUES (?) ON CONFLICT (workflow_id) DO NOTHING";
+    private static final String INTERN_STEP =
+            "INSERT INTO step_keys (step_id) VALUES (?) ON CONFLICT (step_id) DO NOTHING";
+
+    // Explicit projections: columns are read by position, in this order
+    private static final String SELECT_STEP =
+            "SELECT status, output, codec, updated_at, owner, lease_expires_at, attempts, last_error, version " +
+            "FROM steps WHERE wf=" + WORKFLOW_KEY + " AND step=" + STEP_KEY;
+    private static final String SELECT_HISTORY =
+            "SELECT k.step_id, s.status, s.output, s.codec, s.updated_at, s.owner, s.lease_expires_at, " +
+            "s.attempts, s.last_error, s.version FROM steps s JOIN step_keys k ON k.id=s.step " +
+            "WHERE s.wf=" + WORKFLOW_KEY;
+    private static final String UPSERT_STEP =
+            "INSERT OR REPLACE INTO steps (wf, step, status, output, codec, updated_at, owner, " +
+            "lease_expires_at, attempts, last_error, version) " +
+            "VALUES (" + WORKFLOW_KEY + ", " + STEP_KEY + ", ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    // A retried step keeps its attempt count and last error
+    private static final String CLAIM_STEP =
+            "INSERT INTO steps (wf, step, status, output, codec, updated_at, owner, lease_expires_at, version) " +
+            "VALUES (" + WORKFLOW_KEY + ", " + STEP_KEY + ", ?, NULL, ?, ?, ?, ?, 1) " +
+            "ON CONFLICT (wf, step) DO UPDATE SET status=excluded.status, output=NULL, " +
+            "codec=excluded.codec, updated_at=excluded.updated_at, owner=excluded.owner, " +
+            "lease_expires_at=excluded.lease_expires_at, version=steps.version+1";
+    // Compare-and-set claims: each succeeds for at most one of several racing workers
+    private static final String CLAIM_NEW_STEP =
+            "INSERT INTO steps (wf, step, status, output, codec, updated_at, owner, lease_expires_at, version) " +
+            "VALUES (" + WORKFLOW_KEY + ", " + STEP_KEY + ", " + IN_PROGRESS + ", NULL, 0, ?, ?, ?, 1) " +
+            "ON CONFLICT (wf, step) DO NOTHING";
+    private static final String TAKE_OVER_STEP =
+            "UPDATE steps SET output=NULL, updated_at=?, owner=?, lease_expires_at=?, version=version+1 " +
+            "WHERE wf=" + WORKFLOW_KEY + " AND step=" + STEP_KEY + " AND status=" + IN_PROGRESS + " " +
+            "AND version=? AND owner IS ? AND (owner IS NULL OR lease_expires_at < ?)";
+    // Finishing a step releases its lease; fenced on the claim's owner and version unless that is ANY_VERSION
+    private static final String STEP_FENCE = " AND (? < 0 OR (owner IS ? AND version=?))";
+    private static final String UPDATE_STEP =
+            "UPDATE steps SET status=?, output=?, codec=?, updated_at=?, owner=NULL, lease_expires_at=NULL, " +
+            "version=version+1 WHERE wf=" + WORKFLOW_KEY + " AND step=" + STEP_KEY + STEP_FENCE;
+    // A step waiting for its retry keeps the time of the next attempt in lease_expires_at
+    private static final String FAIL_STEP =
+            "UPDATE steps SET status=?, output=?, codec=?, updated_at=?, owner=NULL, lease_expires_at=?, " +
+            "attempts=?, last_error=?, version=version+1 WHERE wf=" + WORKFLOW_KEY + " AND step=" + STEP_KEY +
+            STEP_FENCE;
+    // A lease that was taken over by another worker is not extended
+    private static final String RENEW_LEASE =
+            "UPDATE steps SET lease_expires_at=? " +
+            "WHERE wf=" + WORKFLOW_KEY + " AND step=" + STEP_KEY + " AND owner=? AND status=" + IN_PROGRESS;
+
+    private static final String UPSERT_TIMER =
+            "INSERT OR REPLACE INTO timers (workflow_id, timer_id, workflow_type, fire_at) VALUES (?, ?, ?, ?)";
+    private static final String SELECT_DUE_TIMERS =
+            "SELECT workflow_id, timer_id, workflow_type, fire_at FROM timers WHERE fire_at < ? " +
+            "ORDER BY fire_at LIMIT ?";
+    private static final String DELETE_TIMER =
+            "DELETE FROM timers WHERE workflow_id=? AND timer_id=?";
+
+    private static final String ENQUEUE_WORKFLOW =
+            "INSERT OR IGNORE INTO workflows (workflow_id, workflow_type, status, updated_at) VALUES (?, ?, ?, ?)";
+    private static final String START_WORKFLOW =
+            "INSERT INTO workflows (workflow_id, workflow_type, status, owner, lease_expires_at, updated_at) " +
+            "VALUES (?, ?, ?, ?, ?, ?) " +
+            "ON CONFLICT (workflow_id) DO UPDATE SET workflow_type=excluded.workflow_type, status=excluded.status, " +
+            "owner=excluded.owner, lease_expires_at=excluded.lease_expires_at, updated_at=excluded.updated_at";
+    // One statement picks and takes the batch, so two claimers never get the same instance
+    private static final String CLAIM_WORKFLOWS =
+            "UPDATE workflows SET status='RUNNING', owner=?, lease_expires_at=?, updated_at=? " +
+            "WHERE workflow_id IN (SELECT workflow_id FROM workflows " +
+            "WHERE status='PENDING' OR (status='RUNNING' AND lease_expires_at < ?) ORDER BY updated_at LIMIT ?) " +
+            "RETURNING workflow_id, workflow_type, status, owner, lease_expires_at, updated_at";
+    // Conditional on SLEEPING, so of several workers firing the same timer only one wakes the instance
+    private static final String WAKE_WORKFLOW =
+            "UPDATE workflows SET status='RUNNING', owner=?, lease_expires_at=?, updated_at=? " +
+            "WHERE workflow_id=? AND status='SLEEPING'";
+    private static final String RENEW_WORKFLOW_LEASE =
+            "UPDATE workflows SET lease_expires_at=? WHERE workflow_id=? AND owner=? AND status='RUNNING'";
+    private static final String UPDATE_WORKFLOW =
+            "UPDATE workflows SET status=?, owner=NULL, lease_expires_at=NULL, updated_at=? WHERE workflow_id=?";
+    // Retention: finished instances oldest first over the (status, updated_at) index
+    private static final String SELECT_FINISHED_WORKFLOWS =
+            "SELECT workflow_id, workflow_type, status, owner, lease_expires_at, updated_at FROM workflows " +
+            "WHERE status IN ('COMPLETED', 'FAILED') AND updated_at < ? ORDER BY updated_at LIMIT ?";
+    // Only an instance that is still exactly as it was archived is deleted
+    private static final String DELETE_FINISHED_WORKFLOW =
+            "DELETE FROM workflows WHERE workflow_id=? AND status=? AND updated_at=?";
+    private static final String DELETE_WORKFLOW_STEPS =
+            "DELETE FROM steps WHERE wf=" + WORKFLOW_KEY;
+    private static final String DELETE_WORKFLOW_TIMERS =
+            "DELETE FROM timers WHERE workflow_id=?";
+    private static final String DELETE_WORKFLOW_KEY =
+            "DELETE FROM workflow_keys WHERE workflow_id=?";
+    private static final String SELECT_WORKFLOW =
+            "SELECT workflow_type, status, owner, lease_expires_at, updated_at FROM workflows WHERE workflow_id=?";
+
+    private final ConnectionPool pool;
+    private final GroupCommitWriter writer;
+    private final Durability durability;
+
+    /**
+     * Store on a caller-owned connection. Reads and writes share it, so reads
+     * wait for any commit in progress.
+     */
     public SQLiteStore(Connection connection) throws SQLException {
-        this.connection = connection;
-        initialize();
+        this(connection, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LINGER_MS);
+    }
+
+    /**
+     * @param maxBatchSize most step writes committed in one transaction
+     * @param maxLingerMs  how long the writer waits for more writes to join a
+     *                     batch; 0 batches only what queued up during the
+     *                     previous commit
+     */
+    public SQLiteStore(Connection connection, int maxBatchSize, long maxLingerMs) throws SQLException {
+        this(connection, maxBatchSize, maxLingerMs, Durability.FSYNC_EACH_BATCH);
+    }
+
+    public SQLiteStore(Connection connection, int maxBatchSize, long maxLingerMs, Durability durability)
+            throws SQLException {
+        initialize(connection, durability);
+        this.pool = new ConnectionPool(connection);
+        this.writer = new GroupCommitWriter(pool, maxBatchSize, maxLingerMs);
+        this.durability = durability;
+    }
+
+    /**
+     * Store that opens and owns its connections: one writer plus one
+     * read-only WAL reader per available core.
+     */
+    public SQLiteStore(String url) throws SQLException {
+        this(url, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LINGER_MS);
+    }
+
+    public SQLiteStore(String url, Durability durability) throws SQLException {
+        this(url, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LINGER_MS,
+                durability);
+    }
+
+    public SQLiteStore(String url, int readers, int maxBatchSize, long maxLingerMs) throws SQLException {
+        this(url, readers, maxBatchSize, maxLingerMs, Durability.FSYNC_EACH_BATCH);
+    }
+
+    public SQLiteStore(String url, int readers, int maxBatchSize, long maxLingerMs, Durability durability)
+            throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        initialize(connection, durability);
+        this.pool = new ConnectionPool(connection, url, readers);
+        this.writer = new GroupCommitWriter(pool, maxBatchSize, maxLingerMs);
+        this.durability = durability;
     }
 
-    private void initialize() throws SQLException {
+    private static void initialize(Connection connection, Durability durability) throws SQLException {
+        // The journal mode and the migration's BEGIN need autocommit on; a caller-owned connection may have it off
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(true);
+        try {
+            createSchema(connection, durability);
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static void createSchema(Connection connection, Durability durability) throws SQLException {
         try (Statement stmt = connection.createStatement()) {
+            // Only takes effect on a new database; see RetentionManager
+            stmt.execute("PRAGMA auto_vacuum=INCREMENTAL;");
             stmt.execute("PRAGMA journal_mode=WAL;");
             stmt.execute("PRAGMA busy_timeout=5000;");
+            stmt.execute("PRAGMA synchronous=" + durability.synchronous + ";");
         }
 
+        migrateSteps(connection);
+
         try (Statement stmt = connection.createStatement()) {
-            stmt.execute("CREATE TABLE IF NOT EXISTS steps (" +
+            stmt.execute("CREATE TABLE IF NOT EXISTS timers (" +
                          "workflow_id TEXT," +
-                         "step_id TEXT," +
+                         "timer_id TEXT," +
+                         "workflow_type TEXT," +
+                         "fire_at INTEGER," +
+                         "PRIMARY KEY (workflow_id, timer_id)" +
+                         ");");
+            stmt.execute("CREATE INDEX IF NOT EXISTS timers_fire_at ON timers (fire_at);");
+        }
+
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS workflows (" +
+                         "workflow_id TEXT PRIMARY KEY," +
+                         "workflow_type TEXT," +
                          "status TEXT," +
-                         "output TEXT," +
-                         "updated_at INTEGER," +
-                         "PRIMARY KEY (workflow_id, step_id)" +
+                         "owner TEXT," +
+                         "lease_expires_at INTEGER," +
+                         "updated_at INTEGER" +
                          ");");
+            stmt.execute("CREATE INDEX IF NOT EXISTS workflows_queue ON workflows (status, updated_at);");
         }
+
+    }
+
+    /**
+     * Creates the compact steps layout, or converts a database from the
+     * original one, whose rows were keyed by two TEXT columns and stored the
+     * status by name. The compact layout interns workflow and step IDs into
+     * integer keys and clusters rows by {@code (wf, step)} in a
+     * {@code WITHOUT ROWID} table, so every row and index entry is a few
+     * bytes of key. Outputs above the offload threshold belong in a
+     * {@link BlobStore}: {@code WITHOUT ROWID} rows should stay small.
+     * {@code step_keys} is append-only; retention only deletes workflow keys.
+     */
+    private static void migrateSteps(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            if (schemaVersion(stmt) >= COMPACT_SCHEMA) {
+                return;
+            }
+            // IMMEDIATE: of several processes opening the database, one migrates and the others wait
+            stmt.execute("BEGIN IMMEDIATE");
+            try {
+                if (schemaVersion(stmt) < COMPACT_SCHEMA) {
+                    boolean legacy = hasColumn(connection, "steps", "workflow_id");
+                    if (legacy) {
+                        stmt.execute("ALTER TABLE steps RENAME TO steps_text");
+                    }
+                    createCompactSteps(stmt);
+                    if (legacy) {
+                        long started = System.nanoTime();
+                        int rows = copyLegacySteps(connection, stmt);
+                        log.info("Migrated {} steps to the compact layout in {} ms",
+                                rows, (System.nanoTime() - started) / 1_000_000);
+                    }
+                    stmt.execute("PRAGMA user_version=" + COMPACT_SCHEMA);
+                }
+                stmt.execute("COMMIT");
+            } catch (SQLException e) {
+                stmt.execute("ROLLBACK");
+                throw e;
+            }
+        }
+    }
+
+    private static int schemaVersion(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            return rs.getInt(1);
+        }
+    }
+
+    private static void createCompactSteps(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE workflow_keys (" +
+                     "id INTEGER PRIMARY KEY," +
+                     "workflow_id TEXT NOT NULL UNIQUE" +
+                     ");");
+        stmt.execute("CREATE TABLE step_keys (" +
+                     "id INTEGER PRIMARY KEY," +
+                     "step_id TEXT NOT NULL UNIQUE" +
+                     ");");
+        stmt.execute("CREATE TABLE steps (" +
+                     "wf INTEGER NOT NULL," +
+                     "step INTEGER NOT NULL," +
+                     "status INTEGER NOT NULL," +
+                     "output BLOB," +
+                     "codec INTEGER," +
+                     "updated_at INTEGER," +
+                     "owner TEXT," +
+                     "lease_expires_at INTEGER," +
+                     "attempts INTEGER," +
+                     "last_error TEXT," +
+                     "version INTEGER NOT NULL DEFAULT 0," +
+                     "PRIMARY KEY (wf, step)" +
+                     ") WITHOUT ROWID;");
+    }
+
+    private static int copyLegacySteps(Connection connection, Statement stmt) throws SQLException {
+        // Columns added over time may be missing from old tables; NULL reads as their default
+        addColumnIfMissing(connection, "steps_text", "codec", "INTEGER");
+        addColumnIfMissing(connection, "steps_text", "owner", "TEXT");
+        addColumnIfMissing(connection, "steps_text", "lease_expires_at", "INTEGER");
+        addColumnIfMissing(connection, "steps_text", "attempts", "INTEGER");
+        addColumnIfMissing(connection, "steps_text", "last_error", "TEXT");
+        addColumnIfMissing(connection, "steps_text", "version", "INTEGER NOT NULL DEFAULT 0");
+
+        rejectUnknownStatuses(stmt);
+        stmt.execute("INSERT INTO workflow_keys (workflow_id) SELECT DISTINCT workflow_id FROM steps_text");
+        stmt.execute("INSERT INTO step_keys (step_id) SELECT DISTINCT step_id FROM steps_text");
+        int rows = stmt.executeUpdate(
+                "INSERT INTO steps (wf, step, status, output, codec, updated_at, owner, lease_expires_at, " +
+                "attempts, last_error, version) " +
+                "SELECT w.id, k.id, " + statusOrdinal("t.status") + ", CAST(t.output AS BLOB), t.codec, " +
+                "t.updated_at, t.owner, t.lease_expires_at, t.attempts, t.last_error, t.version " +
+                "FROM steps_text t " +
+                "JOIN workflow_keys w ON w.workflow_id=t.workflow_id " +
+                "JOIN step_keys k ON k.step_id=t.step_id");
+        stmt.execute("DROP TABLE steps_text");
+        return rows;
     }
 
+    // Fails the migration by name rather than with a NOT NULL error from the unmapped CASE
+    private static void rejectUnknownStatuses(Statement stmt) throws SQLException {
+        List<String> known = new ArrayList<>();
+        for (StepStatus status : StepStatus.values()) {
+            known.add("'" + status.name() + "'");
+        }
+        List<String> unknown = new ArrayList<>();
+        try (ResultSet rs = stmt.executeQuery("SELECT DISTINCT status FROM steps_text " +
+                "WHERE status IS NULL OR status NOT IN (" + String.join(", ", known) + ")")) {
+            while (rs.next()) {
+                unknown.add(rs.getString(1));
+            }
+        }
+        if (!unknown.isEmpty()) {
+            throw new SQLException("Cannot migrate steps: unknown status " + unknown +
+                    "; expected one of " + List.of(StepStatus.values()));
+        }
+    }
+
+    private static String statusOrdinal(String column) {
+        StringBuilder sql = new StringBuilder("CASE " + column);
+        for (StepStatus status : StepStatus.values()) {
+            sql.append(" WHEN '").append(status.name()).append("' THEN ").append(status.ordinal());
+        }
+        return sql.append(" END").toString();
+    }
+
+    // Statuses are stored by ordinal
+    private static String statusName(int ordinal) throws SQLException {
+        StepStatus[] statuses = StepStatus.values();
+        if (ordinal < 0 || ordinal >= statuses.length) {
+            throw new SQLException("Unknown step status ordinal " + ordinal);
+        }
+        return statuses[ordinal].name();
+    }
+
+    private static void addColumnIfMissing(Connection connection, String table, String column, String type)
+            throws SQLException {
+        if (!hasColumn(connection, table, column)) {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type + ";");
+            }
+        }
+    }
+
+    private static boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equals(rs.getString("name"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    @Override
     public StepRecord getStep(String workflowId, String stepId) throws SQLException {
-        String sql = "SELECT * FROM steps WHERE workflow_id=? AND step_id=?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        return read(connection -> {
+            PreparedStatement ps = connection.prepare(SELECT_STEP);
+            ps.setString(1, workflowId);
+            ps.setString(2, stepId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return new StepRecord(workflowId, stepId, statusName(rs.getInt(1)), rs.getBytes(2), rs.getInt(3),
+                            rs.getLong(4), rs.getString(5), rs.getLong(6), rs.getInt(7), rs.getString(8),
+                            rs.getLong(9));
+                }
+                return null;
+            }
+        });
+    }
+
+    // One range scan over the primary key instead of a lookup per step
+    @Override
+    public Map<String, StepRecord> loadHistory(String workflowId) throws SQLException {
+        return read(connection -> {
+            Map<String, StepRecord> history = new HashMap<>();
+            PreparedStatement ps = connection.prepare(SELECT_HISTORY);
+            ps.setString(1, workflowId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String stepId = rs.getString(1);
+                    history.put(stepId, new StepRecord(workflowId, stepId,
+                            statusName(rs.getInt(2)), rs.getBytes(3), rs.getInt(4), rs.getLong(5),
+                            rs.getString(6), rs.getLong(7), rs.getInt(8), rs.getString(9), rs.getLong(10)));
+                }
+            }
+            return history;
+        });
+    }
+
+    @Override
+    public void insertInProgress(String workflowId, String stepId, String owner, long leaseExpiresAt)
+            throws SQLException {
+        write(connection -> interned(connection, List.of(new StepKey(workflowId, stepId)), c -> {
+            PreparedStatement ps = c.prepare(CLAIM_STEP);
             ps.setString(1, workflowId);
             ps.setString(2, stepId);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                return new StepRecord(
-                        rs.getString("workflow_id"),
-                        rs.getString("step_id"),
-                        rs.getString("status"),
-                        rs.getString("output"),
-                        rs.getLong("updated_at")
-                );
-            }
-            return null;
-        }
-    }
-
-    public void insertInProgress(String workflowId, String stepId) throws SQLException {
-        synchronized (lock) {
-            executeWithRetry(() -> {
-                connection.setAutoCommit(false);
-                try (PreparedStatement ps = connection.prepareStatement(
-                        "INSERT OR REPLACE INTO steps (workflow_id, step_id, status, output, updated_at) " +
-                        "VALUES (?, ?, ?, ?, ?)"
-                )) {
+            ps.setInt(3, IN_PROGRESS);
+            ps.setInt(4, StepCodecs.JSON);
+            ps.setLong(5, Instant.now().toEpochMilli());
+            ps.setString(6, owner);
+            ps.setLong(7, leaseExpiresAt);
+            return ps.executeUpdate();
+        }));
+    }
+
+    @Override
+    public long claimStep(String workflowId, String stepId, String owner, long leaseExpiresAt, StepRecord expected)
+            throws SQLException {
+        return writer.submit(connection -> {
+            long now = Instant.now().toEpochMilli();
+            if (expected == null) {
+                return interned(connection, List.of(new StepKey(workflowId, stepId)), c -> {
+                    PreparedStatement ps = c.prepare(CLAIM_NEW_STEP);
                     ps.setString(1, workflowId);
                     ps.setString(2, stepId);
-                    ps.setString(3, StepStatus.IN_PROGRESS.name());
-                    ps.setString(4, null);
-                    ps.setLong(5, Instant.now().toEpochMilli());
-                    ps.executeUpdate();
-                    connection.commit();
-                } catch (Exception e) {
-                    connection.rollback();
-                    throw e;
+                    ps.setLong(3, now);
+                    ps.setString(4, owner);
+                    ps.setLong(5, leaseExpiresAt);
+                    return ps.executeUpdate() == 1 ? 1L : -1L;
+                });
+            }
+            PreparedStatement ps = connection.prepare(TAKE_OVER_STEP);
+            ps.setLong(1, now);
+            ps.setString(2, owner);
+            ps.setLong(3, leaseExpiresAt);
+            ps.setString(4, workflowId);
+            ps.setString(5, stepId);
+            ps.setLong(6, expected.getVersion());
+            ps.setString(7, expected.getOwner());
+            ps.setLong(8, now);
+            return ps.executeUpdate() == 1 ? expected.getVersion() + 1 : -1L;
+        });
+    }
+
+    @Override
+    public void renewLeases(String owner, Collection<StepKey> steps, long leaseExpiresAt) throws SQLException {
+        if (steps.isEmpty()) {
+            return;
+        }
+        write(connection -> {
+            PreparedStatement ps = connection.prepare(RENEW_LEASE);
+            for (StepKey step : steps) {
+                ps.setLong(1, leaseExpiresAt);
+                ps.setString(2, step.workflowId());
+                ps.setString(3, step.stepId());
+                ps.setString(4, owner);
+                ps.addBatch();
+            }
+            return ps.executeBatch();
+        });
+    }
+
+    @Override
+    public boolean markCompleted(String workflowId, String stepId, byte[] payload, int codec, String owner,
+                                 long version) throws SQLException {
+        return fenced(connection -> {
+            PreparedStatement ps = connection.prepare(UPDATE_STEP);
+            ps.setInt(1, StepStatus.COMPLETED.ordinal());
+            ps.setBytes(2, payload);
+            ps.setInt(3, codec);
+            ps.setLong(4, Instant.now().toEpochMilli());
+            ps.setString(5, workflowId);
+            ps.setString(6, stepId);
+            fence(ps, 7, owner, version);
+            return ps.executeUpdate();
+        });
+    }
+
+    // The error doubles as the output of a failed step, as before attempts were tracked
+    @Override
+    public boolean markFailed(String workflowId, String stepId, int attempts, String error, String owner,
+                              long version) throws SQLException {
+        return failed(workflowId, stepId, StepStatus.FAILED,
+                error == null ? null : error.getBytes(StandardCharsets.UTF_8), attempts, error, null, owner, version);
+    }
+
+    @Override
+    public boolean markRetrying(String workflowId, String stepId, int attempts, String error, long retryAt,
+                                String owner, long version) throws SQLException {
+        return failed(workflowId, stepId, StepStatus.IN_PROGRESS, null, attempts, error, retryAt, owner, version);
+    }
+
+    private boolean failed(String workflowId, String stepId, StepStatus status, byte[] output, int attempts,
+                           String error, Long retryAt, String owner, long version) throws SQLException {
+        return fenced(connection -> {
+            PreparedStatement ps = connection.prepare(FAIL_STEP);
+            ps.setInt(1, status.ordinal());
+            ps.setBytes(2, output);
+            ps.setInt(3, StepCodecs.JSON);
+            ps.setLong(4, Instant.now().toEpochMilli());
+            ps.setObject(5, retryAt);
+            ps.setInt(6, attempts);
+            ps.setString(7, error);
+            ps.setString(8, workflowId);
+            ps.setString(9, stepId);
+            fence(ps, 10, owner, version);
+            return ps.executeUpdate();
+        });
+    }
+
+    private static void fence(PreparedStatement ps, int index, String owner, long version) throws SQLException {
+        ps.setLong(index, version);
+        ps.setString(index + 1, owner);
+        ps.setLong(index + 2, version);
+    }
+
+    // Waits for the commit under every durability level: a caller told it still owned a step it had lost
+    // would carry on as if its outcome were recorded
+    private boolean fenced(GroupCommitWriter.WriteOp<Integer> op) throws SQLException {
+        return writer.submit(op) > 0;
+    }
+
+    @Override
+    public void batch(List<StepRecord> records) throws SQLException {
+        write(connection -> upsert(connection, records));
+    }
+
+    @Override
+    public void replaceHistory(String workflowId, List<StepRecord> records) throws SQLException {
+        replace(workflowId, records, true);
+    }
+
+    @Override
+    public void replaceSteps(String workflowId, List<StepRecord> records) throws SQLException {
+        replace(workflowId, records, false);
+    }
+
+    private void replace(String workflowId, List<StepRecord> records, boolean timers) throws SQLException {
+        write(connection -> {
+            PreparedStatement ps = connection.prepare(DELETE_WORKFLOW_STEPS);
+            ps.setString(1, workflowId);
+            ps.executeUpdate();
+            if (timers) {
+                ps = connection.prepare(DELETE_WORKFLOW_TIMERS);
+                ps.setString(1, workflowId);
+                ps.executeUpdate();
+            }
+            return upsert(connection, records);
+        });
+    }
+
+    private static int[] upsert(CachedConnection connection, List<StepRecord> records) throws SQLException {
+        List<StepKey> keys = new ArrayList<>(records.size());
+        for (StepRecord record : records) {
+            keys.add(new StepKey(record.getWorkflowId(), record.getStepId()));
+        }
+        return interned(connection, keys, c -> upsertInterned(c, records));
+    }
+
+    private static int[] upsertInterned(CachedConnection connection, List<StepRecord> records) throws SQLException {
+        PreparedStatement ps = connection.prepare(UPSERT_STEP);
+        for (StepRecord record : records) {
+            ps.setString(1, record.getWorkflowId());
+            ps.setString(2, record.getStepId());
+            ps.setInt(3, StepStatus.valueOf(record.getStatus()).ordinal());
+            ps.setBytes(4, record.getPayload());
+            ps.setInt(5, record.getCodec());
+            ps.setLong(6, record.getUpdatedAt());
+            ps.setString(7, record.getOwner());
+            ps.setLong(8, record.getLeaseExpiresAt());
+            ps.setInt(9, record.getAttempts());
+            ps.setString(10, record.getLastError());
+            ps.setLong(11, record.getVersion());
+            ps.addBatch();
+        }
+        return ps.executeBatch();
+    }
+
+    /**
+     * Runs an insert whose keys resolve through the interned IDs, assigning
+     * keys to IDs seen for the first time in the same transaction. IDs this
+     * connection has seen committed skip that insert. Another store on the
+     * same file may have deleted a remembered workflow key since (retention
+     * run elsewhere); its subquery then yields NULL, the insert fails NOT
+     * NULL, and the keys are interned afresh and the insert run again.
+     */
+    private static <T> T interned(CachedConnection connection, List<StepKey> keys,
+                                  GroupCommitWriter.WriteOp<T> insert) throws SQLException {
+        for (StepKey key : keys) {
+            intern(connection, key.workflowId(), key.stepId());
+        }
+        try {
+            return insert.apply(connection);
+        } catch (SQLException e) {
+            if (e.getMessage() == null || !e.getMessage().contains("SQLITE_CONSTRAINT_NOTNULL")) {
+                throw e;
+            }
+            // SQLite aborts only the failed statement, so the transaction carries on
+            for (StepKey key : keys) {
+                connection.forget("wf:" + key.workflowId());
+                connection.forget("step:" + key.stepId());
+            }
+            for (StepKey key : keys) {
+                intern(connection, key.workflowId(), key.stepId());
+            }
+            return insert.apply(connection);
+        }
+    }
+
+    private static void intern(CachedConnection connection, String workflowId, String stepId) throws SQLException {
+        intern(connection, INTERN_WORKFLOW, "wf:" + workflowId, workflowId);
+        intern(connection, INTERN_STEP, "step:" + stepId, stepId);
+    }
+
+    private static void intern(CachedConnection connection, String sql, String key, String id) throws SQLException {
+        if (connection.knows(key)) {
+            return;
+        }
+        PreparedStatement ps = connection.prepare(sql);
+        ps.setString(1, id);
+        ps.executeUpdate();
+        connection.note(key);
+    }
+
+    @Override
+    public void scheduleTimer(TimerRecord timer) throws SQLException {
+        write(connection -> {
+            PreparedStatement ps = connection.prepare(UPSERT_TIMER);
+            ps.setString(1, timer.workflowId());
+            ps.setString(2, timer.timerId());
+            ps.setString(3, timer.workflowType());
+            ps.setLong(4, timer.fireAt());
+            return ps.executeUpdate();
+        });
+    }
+
+    // Range scan over the fire_at index
+    @Override
+    public List<TimerRecord> dueTimers(long fireBefore, int limit) throws SQLException {
+        return read(connection -> {
+            List<TimerRecord> timers = new ArrayList<>();
+            PreparedStatement ps = connection.prepare(SELECT_DUE_TIMERS);
+            ps.setLong(1, fireBefore);
+            ps.setInt(2, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    timers.add(new TimerRecord(rs.getString(1), rs.getString(2), rs.getString(3), rs.getLong(4)));
                 }
-                return null;
-            });
-        }
-    }
-
-    public void markCompleted(String workflowId, String stepId, String output) throws SQLException {
-        synchronized (lock) {
-            executeWithRetry(() -> {
-                connection.setAutoCommit(false);
-                try (PreparedStatement ps = connection.prepareStatement(
-                        "UPDATE steps SET status=?, output=?, updated_at=? WHERE workflow_id=? AND step_id=?"
-                )) {
-                    ps.setString(1, StepStatus.COMPLETED.name());
-                    ps.setString(2, output);
-                    ps.setLong(3, Instant.now().toEpochMilli());
-                    ps.setString(4, workflowId);
-                    ps.setString(5, stepId);
-                    ps.executeUpdate();
-                    connection.commit();
-                } catch (Exception e) {
-                    connection.rollback();
-                    throw e;
+            }
+            return timers;
+        });
+    }
+
+    @Override
+    public void deleteTimer(String workflowId, String timerId) throws SQLException {
+        write(connection -> {
+            PreparedStatement ps = connection.prepare(DELETE_TIMER);
+            ps.setString(1, workflowId);
+            ps.setString(2, timerId);
+            return ps.executeUpdate();
+        });
+    }
+
+    @Override
+    public void enqueueWorkflow(String workflowId, String workflowType) throws SQLException {
+        write(connection -> {
+            PreparedStatement ps = connection.prepare(ENQUEUE_WORKFLOW);
+            ps.setString(1, workflowId);
+            ps.setString(2, workflowType);
+            ps.setString(3, WorkflowStatus.PENDING.name());
+            ps.setLong(4, Instant.now().toEpochMilli());
+            return ps.executeUpdate();
+        });
+    }
+
+    @Override
+    public void startWorkflow(String workflowId, String workflowType, String owner, long leaseExpiresAt)
+            throws SQLException {
+        write(connection -> {
+            PreparedStatement ps = connection.prepare(START_WORKFLOW);
+            ps.setString(1, workflowId);
+            ps.setString(2, workflowType);
+            ps.setString(3, WorkflowStatus.RUNNING.name());
+            ps.setString(4, owner);
+            ps.setLong(5, leaseExpiresAt);
+            ps.setLong(6, Instant.now().toEpochMilli());
+            return ps.executeUpdate();
+        });
+    }
+
+    @Override
+    public List<WorkflowRecord> claimWorkflows(String owner, long leaseExpiresAt, int limit) throws SQLException {
+        return writer.submit(connection -> {
+            long now = Instant.now().toEpochMilli();
+            PreparedStatement ps = connection.prepare(CLAIM_WORKFLOWS);
+            ps.setString(1, owner);
+            ps.setLong(2, leaseExpiresAt);
+            ps.setLong(3, now);
+            ps.setLong(4, now);
+            ps.setInt(5, limit);
+            List<WorkflowRecord> claimed = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    claimed.add(new WorkflowRecord(rs.getString(1), rs.getString(2), rs.getString(3),
+                            rs.getString(4), rs.getLong(5), rs.getLong(6)));
                 }
-                return null;
-            });
+            }
+            return claimed;
+        });
+    }
+
+    @Override
+    public boolean wakeWorkflow(String workflowId, String owner, long leaseExpiresAt) throws SQLException {
+        return writer.submit(connection -> {
+            PreparedStatement ps = connection.prepare(WAKE_WORKFLOW);
+            ps.setString(1, owner);
+            ps.setLong(2, leaseExpiresAt);
+            ps.setLong(3, Instant.now().toEpochMilli());
+            ps.setString(4, workflowId);
+            return ps.executeUpdate();
+        }) == 1;
+    }
+
+    @Override
+    public void renewWorkflowLeases(String owner, Collection<String> workflowIds, long leaseExpiresAt)
+            throws SQLException {
+        if (workflowIds.isEmpty()) {
+            return;
         }
+        write(connection -> {
+            PreparedStatement ps = connection.prepare(RENEW_WORKFLOW_LEASE);
+            for (String workflowId : workflowIds) {
+                ps.setLong(1, leaseExpiresAt);
+                ps.setString(2, workflowId);
+                ps.setString(3, owner);
+                ps.addBatch();
+            }
+            return ps.executeBatch();
+        });
     }
 
-    private interface SQLAction<T> {
-        T execute() throws Exception;
+    @Override
+    public void updateWorkflow(String workflowId, WorkflowStatus status) throws SQLException {
+        write(connection -> {
+            PreparedStatement ps = connection.prepare(UPDATE_WORKFLOW);
+            ps.setString(1, status.name());
+            ps.setLong(2, Instant.now().toEpochMilli());
+            ps.setString(3, workflowId);
+            return ps.executeUpdate();
+        });
     }
 
-    private <T> T executeWithRetry(SQLAction<T> action) throws SQLException {
-        int retries = 5;
-        while (retries-- > 0) {
-            try {
-                return action.execute();
-            } catch (Exception e) {
-                if (e instanceof SQLException sql && sql.getMessage().contains("SQLITE_BUSY")) {
-                    try { Thread.sleep(100); } catch (InterruptedException ignored) {}
-                } else {
-                    throw new SQLException(e);
+    @Override
+    public WorkflowRecord getWorkflow(String workflowId) throws SQLException {
+        return read(connection -> {
+            PreparedStatement ps = connection.prepare(SELECT_WORKFLOW);
+            ps.setString(1, workflowId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return new WorkflowRecord(workflowId, rs.getString(1), rs.getString(2), rs.getString(3),
+                            rs.getLong(4), rs.getLong(5));
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Finished (COMPLETED or FAILED) workflow instances last updated before
+     * {@code updatedBefore}, oldest first.
+     */
+    List<WorkflowRecord> finishedWorkflows(long updatedBefore, int limit) throws SQLException {
+        return read(connection -> {
+            List<WorkflowRecord> finished = new ArrayList<>();
+            PreparedStatement ps = connection.prepare(SELECT_FINISHED_WORKFLOWS);
+            ps.setLong(1, updatedBefore);
+            ps.setInt(2, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    finished.add(new WorkflowRecord(rs.getString(1), rs.getString(2), rs.getString(3),
+                            rs.getString(4), rs.getLong(5), rs.getLong(6)));
                 }
             }
+            return finished;
+        });
+    }
+
+    /**
+     * Deletes the given instances with their steps and timers in one
+     * transaction, skipping any that changed since they were read.
+     */
+    Deletion deleteWorkflows(List<WorkflowRecord> workflows) throws SQLException {
+        return writer.submit(connection -> {
+            int deleted = 0;
+            int steps = 0;
+            for (WorkflowRecord workflow : workflows) {
+                PreparedStatement guard = connection.prepare(DELETE_FINISHED_WORKFLOW);
+                guard.setString(1, workflow.workflowId());
+                guard.setString(2, workflow.status());
+                guard.setLong(3, workflow.updatedAt());
+                if (guard.executeUpdate() == 0) {
+                    continue;
+                }
+                deleted++;
+                PreparedStatement ps = connection.prepare(DELETE_WORKFLOW_STEPS);
+                ps.setString(1, workflow.workflowId());
+                steps += ps.executeUpdate();
+                for (String sql : List.of(DELETE_WORKFLOW_TIMERS, DELETE_WORKFLOW_KEY)) {
+                    ps = connection.prepare(sql);
+                    ps.setString(1, workflow.workflowId());
+                    ps.executeUpdate();
+                }
+                connection.forget("wf:" + workflow.workflowId());
+            }
+            return new Deletion(deleted, steps);
+        });
+    }
+
+    // Instances and step rows actually deleted by deleteWorkflows
+    record Deletion(int workflows, int steps) {
+    }
+
+    boolean incrementalVacuumEnabled() throws SQLException {
+        return pragma("auto_vacuum") == 2;
+    }
+
+    /**
+     * Returns up to {@code pages} free pages to the file system and the
+     * number of bytes that freed. Runs as a series of short transactions of
+     * at most {@link #VACUUM_PAGES_PER_TRANSACTION} pages, so writes queued
+     * meanwhile commit between them instead of waiting for the whole sweep.
+     */
+    long incrementalVacuum(int pages) throws SQLException {
+        long freed = 0;
+        int remaining = pages;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, VACUUM_PAGES_PER_TRANSACTION);
+            long bytes = writer.submit(connection -> vacuumChunk(connection, chunk));
+            if (bytes == 0) {
+                break;
+            }
+            freed += bytes;
+            remaining -= chunk;
+        }
+        return freed;
+    }
+
+    private static long vacuumChunk(CachedConnection connection, int pages) throws SQLException {
+        long pageSize = pragma(connection, "page_size");
+        long before = pragma(connection, "freelist_count");
+        // sqlite-jdbc steps a statement once per execute and has no way to step it further (executeQuery
+        // refuses a pragma without rows), and each step of incremental_vacuum frees one page. Closed, not
+        // cached: a statement left mid-run would keep the transaction from committing.
+        try (PreparedStatement ps = connection.connection().prepareStatement("PRAGMA incremental_vacuum")) {
+            for (long i = Math.min(pages, before); i > 0; i--) {
+                ps.execute();
+            }
+        }
+        return (before - pragma(connection, "freelist_count")) * pageSize;
+    }
+
+    // Group-commit counters, for tests and diagnostics
+    long commitCount() {
+        return writer.commitCount();
+    }
+
+    long committedWrites() {
+        return writer.committedWrites();
+    }
+
+    private long pragma(String name) throws SQLException {
+        return read(connection -> pragma(connection, name));
+    }
+
+    private static long pragma(CachedConnection connection, String name) throws SQLException {
+        try (Statement stmt = connection.connection().createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA " + name)) {
+            return rs.getLong(1);
+        }
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    // Writes whose caller needs no result: acknowledged from memory under BUFFERED
+    private <T> void write(GroupCommitWriter.WriteOp<T> op) throws SQLException {
+        if (durability == Durability.BUFFERED) {
+            writer.submitAsync(op);
+        } else {
+            writer.submit(op);
+        }
+    }
+
+    // Under BUFFERED a read first waits for queued writes, so callers still read their own writes
+    private <T> T read(ConnectionPool.ReadOp<T> op) throws SQLException {
+        if (durability == Durability.BUFFERED) {
+            writer.awaitPending();
+        }
+        return pool.read(op);
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+        try {
+            pool.close();
+        } catch (SQLException e) {
+            log.warn("Failed to close SQLite connections", e);
         }
-        throw new SQLException("Max retry reached due to SQLITE_BUSY");
     }
 }
@@ -0,0 +1,294 @@
+package engine;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads workflows over several {@link SQLiteStore} shards, each with its own
+ * database file, WAL and group-commit writer, so write throughput is no longer
+ * capped by a single writer.
+ *
+ * Every record of a workflow lives on the shard its ID hashes to on a
+ * consistent-hash ring with {@link #VIRTUAL_NODES} points per shard. Shards
+ * are placed on the ring by name ({@code shard-0}, {@code shard-1}, ...), so
+ * growing from N to N+1 shards only moves about 1/(N+1) of the workflows.
+ * There is no rebalancing: changing the shard count of a populated store
+ * strands the workflows whose shard changed.
+ *
+ * {@link #batch(List)} is atomic per shard only.
+ */
+public class ShardedStore implements StateStore, TimerStore, WorkflowStore {
+
+    static final int VIRTUAL_NODES = 128;
+
+    private static final Logger log = LoggerFactory.getLogger(ShardedStore.class);
+
+    // digest() resets the instance, so each thread reuses one
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final List<SQLiteStore> shards;
+    private final TreeMap<Long, SQLiteStore> ring = new TreeMap<>();
+    // Shard that the next claim starts from, so no shard's queue is starved
+    private final AtomicInteger nextClaim = new AtomicInteger();
+
+    /**
+     * Opens {@code shardCount} database files {@code shard-<n>.db} in
+     * {@code directory}, creating it if needed.
+     */
+    public ShardedStore(Path directory, int shardCount) throws SQLException {
+        this(directory, shardCount, SQLiteStore.Durability.FSYNC_EACH_BATCH);
+    }
+
+    public ShardedStore(Path directory, int shardCount, SQLiteStore.Durability durability) throws SQLException {
+        this(open(directory, shardCount, durability));
+        log.info("Opened {} shards in {} ({})", shardCount, directory, durability);
+    }
+
+    // Takes ownership of the shards; their order decides their names on the ring
+    public ShardedStore(List<SQLiteStore> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = List.copyOf(shards);
+        for (int i = 0; i < shards.size(); i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(hash("shard-" + i + "#" + v), shards.get(i));
+            }
+        }
+    }
+
+    private static List<SQLiteStore> open(Path directory, int shardCount, SQLiteStore.Durability durability)
+            throws SQLException {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be >= 1");
+        }
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new SQLException("Cannot create shard directory " + directory, e);
+        }
+        List<SQLiteStore> shards = new ArrayList<>(shardCount);
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards.add(new SQLiteStore("jdbc:sqlite:" + directory.resolve("shard-" + i + ".db"), durability));
+            }
+        } catch (SQLException e) {
+            shards.forEach(SQLiteStore::close);
+            throw e;
+        }
+        return shards;
+    }
+
+    // First 8 bytes of MD5: evenly spread and the same in every JVM. Changing the function would move
+    // existing workflows to other shards, so only the digest lookup is avoided per call.
+    private static long hash(String key) {
+        byte[] digest = MD5.get().digest(key.getBytes(StandardCharsets.UTF_8));
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (digest[i] & 0xFF);
+        }
+        return h;
+    }
+
+    /**
+     * Shard holding all state of {@code workflowId}.
+     */
+    public SQLiteStore shardFor(String workflowId) {
+        Map.Entry<Long, SQLiteStore> owner = ring.ceilingEntry(hash(workflowId));
+        return owner == null ? ring.firstEntry().getValue() : owner.getValue();
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    @Override
+    public StepRecord getStep(String workflowId, String stepId) throws SQLException {
+        return shardFor(workflowId).getStep(workflowId, stepId);
+    }
+
+    @Override
+    public Map<String, StepRecord> loadHistory(String workflowId) throws SQLException {
+        return shardFor(workflowId).loadHistory(workflowId);
+    }
+
+    @Override
+    public void insertInProgress(String workflowId, String stepId, String owner, long leaseExpiresAt)
+            throws SQLException {
+        shardFor(workflowId).insertInProgress(workflowId, stepId, owner, leaseExpiresAt);
+    }
+
+    @Override
+    public long claimStep(String workflowId, String stepId, String owner, long leaseExpiresAt, StepRecord expected)
+            throws SQLException {
+        return shardFor(workflowId).claimStep(workflowId, stepId, owner, leaseExpiresAt, expected);
+    }
+
+    // One renewal write per shard that holds any of the steps
+    @Override
+    public void renewLeases(String owner, Collection<StepKey> steps, long leaseExpiresAt) throws SQLException {
+        for (Map.Entry<SQLiteStore, List<StepKey>> shard : group(steps, StepKey::workflowId).entrySet()) {
+            shard.getKey().renewLeases(owner, shard.getValue(), leaseExpiresAt);
+        }
+    }
+
+    @Override
+    public boolean markCompleted(String workflowId, String stepId, byte[] payload, int codec, String owner,
+                                 long version) throws SQLException {
+        return shardFor(workflowId).markCompleted(workflowId, stepId, payload, codec, owner, version);
+    }
+
+    @Override
+    public boolean markFailed(String workflowId, String stepId, int attempts, String error, String owner,
+                              long version) throws SQLException {
+        return shardFor(workflowId).markFailed(workflowId, stepId, attempts, error, owner, version);
+    }
+
+    @Override
+    public boolean markRetrying(String workflowId, String stepId, int attempts, String error, long retryAt,
+                                String owner, long version) throws SQLException {
+        return shardFor(workflowId).markRetrying(workflowId, stepId, attempts, error, retryAt, owner, version);
+    }
+
+    @Override
+    public void batch(List<StepRecord> records) throws SQLException {
+        for (Map.Entry<SQLiteStore, List<StepRecord>> shard : group(records, StepRecord::getWorkflowId).entrySet()) {
+            shard.getKey().batch(shard.getValue());
+        }
+    }
+
+    @Override
+    public void replaceHistory(String workflowId, List<StepRecord> records) throws SQLException {
+        shardFor(workflowId).replaceHistory(workflowId, records);
+    }
+
+    @Override
+    public void replaceSteps(String workflowId, List<StepRecord> records) throws SQLException {
+        shardFor(workflowId).replaceSteps(workflowId, records);
+    }
+
+    private <T> Map<SQLiteStore, List<T>> group(Collection<T> items, Function<T, String> workflowId) {
+        Map<SQLiteStore, List<T>> byShard = new IdentityHashMap<>();
+        for (T item : items) {
+            byShard.computeIfAbsent(shardFor(workflowId.apply(item)), s -> new ArrayList<>()).add(item);
+        }
+        return byShard;
+    }
+
+    @Override
+    public void scheduleTimer(TimerRecord timer) throws SQLException {
+        shardFor(timer.workflowId()).scheduleTimer(timer);
+    }
+
+    // Each shard returns its earliest timers; the merge keeps the earliest overall
+    @Override
+    public List<TimerRecord> dueTimers(long fireBefore, int limit) throws SQLException {
+        List<TimerRecord> due = new ArrayList<>();
+        for (SQLiteStore shard : shards) {
+            due.addAll(shard.dueTimers(fireBefore, limit));
+        }
+        due.sort(Comparator.comparingLong(TimerRecord::fireAt));
+        return due.size() > limit ? new ArrayList<>(due.subList(0, limit)) : due;
+    }
+
+    @Override
+    public void deleteTimer(String workflowId, String timerId) throws SQLException {
+        shardFor(workflowId).deleteTimer(workflowId, timerId);
+    }
+
+    @Override
+    public void enqueueWorkflow(String workflowId, String workflowType) throws SQLException {
+        shardFor(workflowId).enqueueWorkflow(workflowId, workflowType);
+    }
+
+    @Override
+    public void startWorkflow(String workflowId, String workflowType, String owner, long leaseExpiresAt)
+            throws SQLException {
+        shardFor(workflowId).startWorkflow(workflowId, workflowType, owner, leaseExpiresAt);
+    }
+
+    /**
+     * Claims from the shards in turn, starting one further along each call,
+     * until {@code limit} instances are claimed. Instances are oldest first
+     * within each shard, not across shards.
+     *
+     * A shard that fails is logged and skipped, so instances already claimed
+     * on other shards still reach the caller instead of idling under this
+     * owner's lease until it expires. Only when nothing was claimed and a
+     * shard failed is the failure thrown.
+     */
+    @Override
+    public List<WorkflowRecord> claimWorkflows(String owner, long leaseExpiresAt, int limit) throws SQLException {
+        List<WorkflowRecord> claimed = new ArrayList<>();
+        SQLException failure = null;
+        int start = Math.floorMod(nextClaim.getAndIncrement(), shards.size());
+        for (int i = 0; i < shards.size() && claimed.size() < limit; i++) {
+            int index = (start + i) % shards.size();
+            try {
+                claimed.addAll(shards.get(index).claimWorkflows(owner, leaseExpiresAt, limit - claimed.size()));
+            } catch (SQLException e) {
+                log.warn("Claiming workflows on shard {} failed", index, e);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (claimed.isEmpty() && failure != null) {
+            throw failure;
+        }
+        return claimed;
+    }
+
+    @Override
+    public boolean wakeWorkflow(String workflowId, String owner, long leaseExpiresAt) throws SQLException {
+        return shardFor(workflowId).wakeWorkflow(workflowId, owner, leaseExpiresAt);
+    }
+
+    @Override
+    public void renewWorkflowLeases(String owner, Collection<String> workflowIds, long leaseExpiresAt)
+            throws SQLException {
+        for (Map.Entry<SQLiteStore, List<String>> shard : group(workflowIds, id -> id).entrySet()) {
+            shard.getKey().renewWorkflowLeases(owner, shard.getValue(), leaseExpiresAt);
+        }
+    }
+
+    @Override
+    public void updateWorkflow(String workflowId, WorkflowStatus status) throws SQLException {
+        shardFor(workflowId).updateWorkflow(workflowId, status);
+    }
+
+    @Override
+    public WorkflowRecord getWorkflow(String workflowId) throws SQLException {
+        return shardFor(workflowId).getWorkflow(workflowId);
+    }
+
+    @Override
+    public void close() {
+        shards.forEach(SQLiteStore::close);
+    }
+}
@@ -0,0 +1,135 @@
+package engine;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistence SPI behind {@link DurableContext}.
+ *
+ * Implementations must be safe to call from many threads at once. A write
+ * method may only return once the write is as durable as the implementation
+ * promises; the engine relies on that ordering for replay.
+ */
+public interface StateStore extends AutoCloseable {
+
+    // Fence version that matches any record: the write is not fenced
+    long ANY_VERSION = -1;
+
+    StepRecord getStep(String workflowId, String stepId) throws SQLException;
+
+    /**
+     * Every recorded step of a workflow, keyed by step ID.
+     */
+    Map<String, StepRecord> loadHistory(String workflowId) throws SQLException;
+
+    default void insertInProgress(String workflowId, String stepId) throws SQLException {
+        insertInProgress(workflowId, stepId, null, 0);
+    }
+
+    /**
+     * Records a step as running under {@code owner}'s lease, replacing any
+     * earlier record of it.
+     */
+    void insertInProgress(String workflowId, String stepId, String owner, long leaseExpiresAt)
+            throws SQLException;
+
+    /**
+     * Atomically takes a step for {@code owner}, so that of several workers
+     * (in this or other processes) racing for it exactly one wins.
+     *
+     * With {@code expected == null} the step must not exist yet. Otherwise it
+     * must still be IN_PROGRESS at {@code expected}'s version and owner, with
+     * no owner or an expired lease. Lease renewals do not change the version,
+     * but a renewed lease is no longer expired, so the claim fails.
+     *
+     * @return the step's new version, or -1 if the step changed since
+     *         {@code expected} was read
+     */
+    long claimStep(String workflowId, String stepId, String owner, long leaseExpiresAt, StepRecord expected)
+            throws SQLException;
+
+    /**
+     * Extends the leases of the given IN_PROGRESS steps that are still held by
+     * {@code owner}, in one write.
+     */
+    void renewLeases(String owner, Collection<StepKey> steps, long leaseExpiresAt) throws SQLException;
+
+    /**
+     * Stores an encoded result together with the codec value that wrote it
+     * (see {@link StepCodecs}) and releases the step's lease.
+     *
+     * The finishing writes are fenced: they only apply while the step is
+     * still held by {@code owner} at {@code version}, the version its claim
+     * returned. A worker whose lease expired and was taken over therefore
+     * cannot overwrite the new owner's outcome.
+     *
+     * @return false if the fence failed and nothing was written. Stores
+     *         that acknowledge other writes early still wait for these, so
+     *         the answer is always the committed outcome.
+     */
+    boolean markCompleted(String workflowId, String stepId, byte[] payload, int codec, String owner, long version)
+            throws SQLException;
+
+    // Unfenced form, for tools and tests that own the store outright
+    default void markCompleted(String workflowId, String stepId, byte[] payload, int codec) throws SQLException {
+        markCompleted(workflowId, stepId, payload, codec, null, ANY_VERSION);
+    }
+
+    // JSON text convenience form
+    default void markCompleted(String workflowId, String stepId, String output) throws SQLException {
+        markCompleted(workflowId, stepId,
+                output == null ? null : output.getBytes(StandardCharsets.UTF_8), StepCodecs.JSON);
+    }
+
+    default void markFailed(String workflowId, String stepId, String error) throws SQLException {
+        markFailed(workflowId, stepId, 1, error, null, ANY_VERSION);
+    }
+
+    /**
+     * Records that a step failed for good after {@code attempts} attempts and
+     * releases its lease. Fenced like
+     * {@link #markCompleted(String, String, byte[], int, String, long)}.
+     */
+    boolean markFailed(String workflowId, String stepId, int attempts, String error, String owner, long version)
+            throws SQLException;
+
+    /**
+     * Records a failed attempt of a step that will be retried. The step stays
+     * IN_PROGRESS without an owner, so any worker may pick up the next
+     * attempt, and keeps its attempt count across
+     * {@link #insertInProgress(String, String, String, long)}. The lease
+     * expiry column holds {@code retryAt}, when the next attempt is due, so a
+     * resumed workflow waits out what is left of the backoff. Fenced like
+     * {@link #markCompleted(String, String, byte[], int, String, long)}.
+     */
+    boolean markRetrying(String workflowId, String stepId, int attempts, String error, long retryAt,
+                         String owner, long version) throws SQLException;
+
+    /**
+     * Writes all records atomically, replacing any existing record with the
+     * same workflow and step ID.
+     */
+    void batch(List<StepRecord> records) throws SQLException;
+
+    /**
+     * Atomically drops every recorded step of a workflow (and, on a
+     * {@link TimerStore}, its timers) and writes {@code records} as its only
+     * history. This starts a new run of the workflow; see
+     * {@link DurableContext#continueAsNew(Object)}.
+     */
+    void replaceHistory(String workflowId, List<StepRecord> records) throws SQLException;
+
+    /**
+     * Like {@link #replaceHistory(String, List)}, but leaves the workflow's
+     * timers alone: the same run carries on. Used to prune the steps a
+     * snapshot summarizes; see {@link DurableContext#snapshot(Object)}.
+     */
+    void replaceSteps(String workflowId, List<StepRecord> records) throws SQLException;
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,22 @@
+package engine;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fasterxml.jackson.databind.JavaType;
+
+/**
+ * Encodes step results for storage.
+ *
+ * Every stored payload records the {@link #id()} of the codec that wrote it,
+ * so a codec can be swapped for new steps while old rows still decode. IDs
+ * must be stable and fit in the low byte; see {@link StepCodecs}.
+ */
+public interface StepCodec {
+
+    int id();
+
+    byte[] encode(Object value, JavaType type) throws IOException;
+
+    <T> T decode(InputStream in, JavaType type) throws IOException;
+}
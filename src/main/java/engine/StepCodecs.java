@@ -0,0 +1,148 @@
+package engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
+/**
+ * Built-in codecs, the codec registry and payload compression.
+ *
+ * The stored codec value is the codec ID in the low byte plus flag bits above
+ * it. {@link #COMPRESSED} marks a Deflate-compressed payload, and
+ * {@link #BLOB_REFERENCE} a payload that is only the hash of the real one in a
+ * {@link BlobStore}. Rows written before codecs existed have no codec value
+ * and read as {@link #JSON}.
+ */
+public final class StepCodecs {
+
+    public static final int JSON = 0;
+    public static final int SMILE = 1;
+
+    public static final int COMPRESSED = 0x100;
+    public static final int BLOB_REFERENCE = 0x200;
+    private static final int CODEC_MASK = 0xFF;
+
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 4096;
+
+    private static final Map<Integer, StepCodec> codecs = new ConcurrentHashMap<>();
+
+    public static final StepCodec JSON_CODEC = register(new JacksonCodec(JSON, ResultTypes.MAPPER));
+    public static final StepCodec SMILE_CODEC = register(new JacksonCodec(SMILE, new SmileMapper()));
+
+    private StepCodecs() {
+    }
+
+    public static StepCodec register(StepCodec codec) {
+        if ((codec.id() & ~CODEC_MASK) != 0) {
+            throw new IllegalArgumentException("Codec ID must fit in one byte: " + codec.id());
+        }
+        StepCodec existing = codecs.putIfAbsent(codec.id(), codec);
+        if (existing != null && existing != codec) {
+            throw new IllegalArgumentException("Codec ID already registered: " + codec.id());
+        }
+        return codec;
+    }
+
+    public static StepCodec forId(int codec) {
+        StepCodec found = codecs.get(codec & CODEC_MASK);
+        if (found == null) {
+            throw new IllegalStateException("No codec registered for ID " + (codec & CODEC_MASK));
+        }
+        return found;
+    }
+
+    public static boolean isCompressed(int codec) {
+        return (codec & COMPRESSED) != 0;
+    }
+
+    public static boolean isBlobReference(int codec) {
+        return (codec & BLOB_REFERENCE) != 0;
+    }
+
+    /**
+     * Encodes {@code value} and deflates the result if it is at least
+     * {@code compressionThreshold} bytes and compression actually shrinks it.
+     */
+    static StepRecord encode(String workflowId, String stepId, Object value, JavaType type,
+                             StepCodec codec, int compressionThreshold, long updatedAt) throws IOException {
+        byte[] payload = codec.encode(value, type);
+        int flags = codec.id();
+        if (payload.length >= compressionThreshold) {
+            byte[] compressed = deflate(payload);
+            if (compressed.length < payload.length) {
+                payload = compressed;
+                flags |= COMPRESSED;
+            }
+        }
+        return new StepRecord(workflowId, stepId, StepStatus.COMPLETED.name(), payload, flags, updatedAt);
+    }
+
+    static <T> T decode(StepRecord record, JavaType type) throws IOException {
+        if (record.getPayload() == null) {
+            return null;
+        }
+        return decode(new ByteArrayInputStream(record.getPayload()), record.getCodec(), type);
+    }
+
+    static <T> T decode(InputStream raw, int codec, JavaType type) throws IOException {
+        try (InputStream in = isCompressed(codec) ? new InflaterInputStream(raw) : raw) {
+            return forId(codec).decode(in, type);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        // A caller-supplied Deflater is not ended by the stream; end it here to free its native memory
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream stream = new DeflaterOutputStream(out, deflater)) {
+            stream.write(data);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Codec over any Jackson mapper, with readers and writers cached per type
+     * like {@link ResultTypes} does for JSON.
+     */
+    private static final class JacksonCodec implements StepCodec {
+
+        private final int id;
+        private final ObjectMapper mapper;
+        private final Map<JavaType, ObjectReader> readers = new ConcurrentHashMap<>();
+        private final Map<JavaType, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+        JacksonCodec(int id, ObjectMapper mapper) {
+            this.id = id;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public byte[] encode(Object value, JavaType type) throws IOException {
+            return writers.computeIfAbsent(type, mapper::writerFor).writeValueAsBytes(value);
+        }
+
+        @Override
+        public <T> T decode(InputStream in, JavaType type) throws IOException {
+            return readers.computeIfAbsent(type, mapper::readerFor).readValue(in);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package engine;
+
+/**
+ * A step whose action failed for good: its retry policy gave up or the error
+ * was not retryable. The failure is recorded, so replaying the workflow
+ * throws it again without running the action.
+ */
+public class StepFailedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String stepId;
+    private final int attempts;
+
+    public StepFailedException(String stepId, int attempts, String error, Throwable cause) {
+        super("Step " + stepId + " failed after " + attempts
+                + (attempts == 1 ? " attempt: " : " attempts: ") + error, cause);
+        this.stepId = stepId;
+        this.attempts = attempts;
+    }
+
+    public String getStepId() {
+        return stepId;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+}
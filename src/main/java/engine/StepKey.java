@@ -0,0 +1,7 @@
+package engine;
+
+/**
+ * Identity of one step of one workflow.
+ */
+public record StepKey(String workflowId, String stepId) {
+}
@@ -1,28 +1,139 @@
 package engine;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Objects;
+
 public class StepRecord {
 
     private final String workflowId;
     private final String stepId;
     private final String status;
-    private final String output;
+    private final byte[] payload;
+    private final int codec;
     private final long updatedAt;
+    private final String owner;
+    private final long leaseExpiresAt;
+    private final int attempts;
+    private final String lastError;
+    private final long version;
 
+    // Record with a JSON text output (or an error message for FAILED steps)
     public StepRecord(String workflowId,
                       String stepId,
                       String status,
                       String output,
                       long updatedAt) {
+        this(workflowId, stepId, status,
+             output == null ? null : output.getBytes(StandardCharsets.UTF_8),
+             StepCodecs.JSON, updatedAt);
+    }
+
+    public StepRecord(String workflowId,
+                      String stepId,
+                      String status,
+                      byte[] payload,
+                      int codec,
+                      long updatedAt) {
+        this(workflowId, stepId, status, payload, codec, updatedAt, null, 0);
+    }
+
+    public StepRecord(String workflowId,
+                      String stepId,
+                      String status,
+                      byte[] payload,
+                      int codec,
+                      long updatedAt,
+                      String owner,
+                      long leaseExpiresAt) {
+        this(workflowId, stepId, status, payload, codec, updatedAt, owner, leaseExpiresAt, 0, null);
+    }
+
+    public StepRecord(String workflowId,
+                      String stepId,
+                      String status,
+                      byte[] payload,
+                      int codec,
+                      long updatedAt,
+                      String owner,
+                      long leaseExpiresAt,
+                      int attempts,
+                      String lastError) {
+        this(workflowId, stepId, status, payload, codec, updatedAt, owner, leaseExpiresAt, attempts, lastError, 0);
+    }
+
+    public StepRecord(String workflowId,
+                      String stepId,
+                      String status,
+                      byte[] payload,
+                      int codec,
+                      long updatedAt,
+                      String owner,
+                      long leaseExpiresAt,
+                      int attempts,
+                      String lastError,
+                      long version) {
         this.workflowId = workflowId;
         this.stepId = stepId;
         this.status = status;
-        this.output = output;
+        this.payload = payload;
+        this.codec = codec;
         this.updatedAt = updatedAt;
+        this.owner = owner;
+        this.leaseExpiresAt = leaseExpiresAt;
+        this.attempts = attempts;
+        this.lastError = lastError;
+        this.version = version;
     }
 
     public String getWorkflowId() { return workflowId; }
     public String getStepId() { return stepId; }
     public String getStatus() { return status; }
-    public String getOutput() { return output; }
+    public byte[] getPayload() { return payload; }
+    public int getCodec() { return codec; }
     public long getUpdatedAt() { return updatedAt; }
+    // Worker holding the step while IN_PROGRESS; null if unknown
+    public String getOwner() { return owner; }
+    // Epoch millis after which another worker may take the step over; for a
+    // step waiting to be retried, when its next attempt is due; 0 if none
+    public long getLeaseExpiresAt() { return leaseExpiresAt; }
+    // Failed attempts so far; 0 if the action never threw
+    public int getAttempts() { return attempts; }
+    public String getLastError() { return lastError; }
+    // Bumped by every claim and status change; the token for compare-and-set claims
+    public long getVersion() { return version; }
+
+    // IN_PROGRESS with no owner after a failure: waiting for its next attempt
+    public boolean isRetryPending() {
+        return attempts > 0 && owner == null && StepStatus.IN_PROGRESS.name().equals(status);
+    }
+
+    // Fence check of the finishing writes; see StateStore.ANY_VERSION
+    boolean isHeldBy(String owner, long version) {
+        return version == StateStore.ANY_VERSION
+                || (this.version == version && Objects.equals(this.owner, owner));
+    }
+
+    // The record a claim writes; it keeps the attempt count and last error of the record it replaces
+    static StepRecord claimed(String workflowId, String stepId, String owner, long leaseExpiresAt,
+                              StepRecord previous) {
+        return new StepRecord(workflowId, stepId, StepStatus.IN_PROGRESS.name(), null, StepCodecs.JSON,
+                Instant.now().toEpochMilli(), owner, leaseExpiresAt,
+                previous == null ? 0 : previous.getAttempts(),
+                previous == null ? null : previous.getLastError(),
+                previous == null ? 1 : previous.getVersion() + 1);
+    }
+
+    // Epoch millis before which a retry-pending step must not run again; 0 if none
+    public long getRetryAt() {
+        return isRetryPending() ? leaseExpiresAt : 0;
+    }
+
+    // Output as text; null for binary or compressed payloads
+    public String getOutput() {
+        if (payload == null || codec != StepCodecs.JSON) {
+            return null;
+        }
+        return new String(payload, StandardCharsets.UTF_8);
+    }
 }
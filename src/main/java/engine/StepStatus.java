@@ -1,5 +1,6 @@
 package engine;
 
+// SQLiteStore stores statuses by ordinal: only ever append constants
 public enum StepStatus {
     IN_PROGRESS,
     COMPLETED,
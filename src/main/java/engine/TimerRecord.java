@@ -0,0 +1,8 @@
+package engine;
+
+/**
+ * A durable timer: workflow {@code workflowId} of type {@code workflowType}
+ * resumes at {@code fireAt} (epoch millis).
+ */
+public record TimerRecord(String workflowId, String timerId, String workflowType, long fireAt) {
+}
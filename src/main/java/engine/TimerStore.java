@@ -0,0 +1,23 @@
+package engine;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Optional {@link StateStore} capability: persistent timers for workflows
+ * that are unloaded while they sleep. {@link WorkflowRuntime} suspends
+ * sleeping workflows only on stores that implement it.
+ */
+public interface TimerStore {
+
+    // Replaces any timer with the same workflow and timer ID
+    void scheduleTimer(TimerRecord timer) throws SQLException;
+
+    /**
+     * Timers firing before {@code fireBefore}, earliest first, at most
+     * {@code limit} of them.
+     */
+    List<TimerRecord> dueTimers(long fireBefore, int limit) throws SQLException;
+
+    void deleteTimer(String workflowId, String timerId) throws SQLException;
+}
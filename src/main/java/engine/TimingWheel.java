@@ -0,0 +1,203 @@
+package engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hierarchical timing wheel for large numbers of timers.
+ *
+ * The first level has {@code wheelSize} buckets of {@code tickMs} each. A
+ * timer beyond its span goes to an overflow level whose ticks are one full
+ * turn of the level below, and so on, so any deadline fits in a handful of
+ * levels. Scheduling is O(1). Only non-empty buckets are put on a delay
+ * queue, so the driver thread sleeps until the next bucket is due instead
+ * of waking every tick. When a coarse bucket expires, its timers are
+ * re-inserted and cascade down to finer levels until they fire.
+ *
+ * Tasks run on the driver thread and must only hand work off.
+ */
+class TimingWheel implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+    private static final class Timer {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    private static final class Bucket implements Delayed {
+        final List<Timer> timers = new ArrayList<>();
+        long expiration = -1;
+
+        // True if the bucket got a new expiration and has to be (re)queued
+        boolean setExpiration(long expiration) {
+            if (this.expiration == expiration) {
+                return false;
+            }
+            this.expiration = expiration;
+            return true;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(expiration - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(expiration, ((Bucket) other).expiration);
+        }
+    }
+
+    private static final class Level {
+        final long tickMs;
+        final int wheelSize;
+        final long intervalMs;
+        final Bucket[] buckets;
+        long currentTime;
+        Level overflow;
+
+        Level(long tickMs, int wheelSize, long startMs) {
+            this.tickMs = tickMs;
+            this.wheelSize = wheelSize;
+            this.intervalMs = tickMs * wheelSize;
+            this.buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new Bucket();
+            }
+            this.currentTime = startMs - (startMs % tickMs);
+        }
+
+        // False if the timer is already due
+        boolean add(Timer timer, DelayQueue<Bucket> queue) {
+            if (timer.deadline < currentTime + tickMs) {
+                return false;
+            }
+            if (timer.deadline < currentTime + intervalMs) {
+                long virtualId = timer.deadline / tickMs;
+                Bucket bucket = buckets[(int) (virtualId % wheelSize)];
+                bucket.timers.add(timer);
+                if (bucket.setExpiration(virtualId * tickMs)) {
+                    queue.offer(bucket);
+                }
+                return true;
+            }
+            if (overflow == null) {
+                overflow = new Level(intervalMs, wheelSize, currentTime);
+            }
+            return overflow.add(timer, queue);
+        }
+
+        void advance(long time) {
+            if (time >= currentTime + tickMs) {
+                currentTime = time - (time % tickMs);
+                if (overflow != null) {
+                    overflow.advance(currentTime);
+                }
+            }
+        }
+    }
+
+    private final Level wheel;
+    private final DelayQueue<Bucket> queue = new DelayQueue<>();
+    private final Object lock = new Object();
+    private final Thread driver;
+    private volatile boolean running = true;
+    private int pending;
+
+    /**
+     * @param tickMs    resolution of the finest level
+     * @param wheelSize buckets per level
+     */
+    TimingWheel(long tickMs, int wheelSize) {
+        this.wheel = new Level(tickMs, wheelSize, System.currentTimeMillis());
+        this.driver = new Thread(this::run, "timing-wheel");
+        this.driver.setDaemon(true);
+        this.driver.start();
+    }
+
+    /**
+     * Runs {@code task} at {@code deadlineMs} (epoch millis), or at once if
+     * that has passed.
+     */
+    void schedule(long deadlineMs, Runnable task) {
+        Timer timer = new Timer(deadlineMs, task);
+        synchronized (lock) {
+            if (wheel.add(timer, queue)) {
+                pending++;
+                return;
+            }
+        }
+        fire(timer);
+    }
+
+    // Timers scheduled but not fired yet
+    int pending() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    private void run() {
+        List<Timer> expired = new ArrayList<>();
+        while (running) {
+            try {
+                Bucket bucket = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (bucket == null) {
+                    continue;
+                }
+                synchronized (lock) {
+                    while (bucket != null) {
+                        wheel.advance(bucket.expiration);
+                        pending -= bucket.timers.size();
+                        for (Timer timer : bucket.timers) {
+                            // Cascades timers from coarse levels; those that are due come back false
+                            if (wheel.add(timer, queue)) {
+                                pending++;
+                            } else {
+                                expired.add(timer);
+                            }
+                        }
+                        bucket.timers.clear();
+                        bucket.expiration = -1;
+                        bucket = queue.poll();
+                    }
+                }
+                expired.forEach(this::fire);
+                expired.clear();
+            } catch (InterruptedException e) {
+                // close() wakes the driver
+            }
+        }
+    }
+
+    private void fire(Timer timer) {
+        try {
+            timer.task.run();
+        } catch (RuntimeException e) {
+            log.error("Timer task failed", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        driver.interrupt();
+        try {
+            driver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
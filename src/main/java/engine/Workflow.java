@@ -0,0 +1,13 @@
+package engine;
+
+/**
+ * A workflow type that {@link WorkflowRuntime} can start and resume.
+ *
+ * Implementations must be deterministic in the order they issue steps, since
+ * resuming an instance replays {@code run} from the top against its history.
+ */
+@FunctionalInterface
+public interface Workflow {
+
+    void run(DurableContext ctx) throws Exception;
+}
@@ -0,0 +1,22 @@
+package engine;
+
+/**
+ * Thrown by {@link DurableContext#continueAsNew} once the workflow's history
+ * has been replaced by its new input. {@link WorkflowRuntime} catches it and
+ * runs the workflow again from the top; workflow code must let it propagate.
+ */
+public class WorkflowContinuedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String workflowId;
+
+    public WorkflowContinuedException(String workflowId) {
+        super("Workflow " + workflowId + " continued as new", null, false, false);
+        this.workflowId = workflowId;
+    }
+
+    public String getWorkflowId() {
+        return workflowId;
+    }
+}
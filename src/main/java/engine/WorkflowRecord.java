@@ -0,0 +1,13 @@
+package engine;
+
+/**
+ * One row of the workflow table: an instance, its type and where it is in
+ * its lifecycle.
+ */
+public record WorkflowRecord(String workflowId,
+                             String workflowType,
+                             String status,
+                             String owner,
+                             long leaseExpiresAt,
+                             long updatedAt) {
+}
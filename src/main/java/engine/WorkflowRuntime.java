@@ -0,0 +1,468 @@
+package engine;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hosts many workflow instances in one JVM.
+ *
+ * Every instance runs on its own virtual thread, and so do the async steps it
+ * dispatches. A step waiting on a checkpoint commit parks its virtual thread
+ * instead of holding a platform thread, so tens of thousands of in-flight
+ * instances cost little more than their heap. All instances share one
+ * {@link StateStore}, whose group-commit writer folds their concurrent
+ * checkpoints into shared transactions.
+ *
+ * When the store is a {@link TimerStore}, a workflow that sleeps is unloaded:
+ * its timer is persisted and the instance leaves memory until the timer
+ * fires, when it is replayed up to the sleep and continues. Only timers due
+ * within {@link #TIMER_HORIZON_MS} are held in the in-memory timing wheel;
+ * later ones stay in the store until a periodic scan brings them in range.
+ *
+ * When the store is a {@link WorkflowStore}, every instance's state is kept
+ * in its workflow table, which doubles as a run queue: {@link #submit} queues
+ * an instance, and {@link #startWorkers} claims queued instances in batches.
+ * An instance whose worker died is RUNNING with an expired lease, so the
+ * workers of the next process to start claim it and resume it.
+ */
+public class WorkflowRuntime implements AutoCloseable {
+
+    // Timers due within this window are loaded into the timing wheel
+    public static final long TIMER_HORIZON_MS = 60_000;
+    private static final int TIMER_LOAD_LIMIT = 10_000;
+    // How long idle workers wait before polling an empty queue again
+    public static final long POLL_INTERVAL_MS = 100;
+
+    private static final Logger log = LoggerFactory.getLogger(WorkflowRuntime.class);
+
+    private final StateStore store;
+    private final Map<String, Workflow> workflowTypes = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Void>> running = new ConcurrentHashMap<>();
+    // Completion handles of instances started here that are now unloaded on a timer
+    private final Map<String, CompletableFuture<Void>> suspended = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    // One heartbeat renews the step leases of every instance in this runtime
+    private final LeaseManager leases;
+    private final TimerStore timerStore;
+    private final TimingWheel timers;
+    // Timers currently in the wheel, so a rescan does not add them twice
+    private final Set<StepKey> armed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean timerLoaderStarted = new AtomicBoolean();
+    private final WorkflowStore workflowStore;
+    // Free places for claimed instances; the poller blocks on it while the workers are full
+    private final Semaphore slots = new Semaphore(0);
+    private final AtomicLong claimedCount = new AtomicLong();
+    private volatile Thread poller;
+    private volatile StepCodec codec = StepCodecs.JSON_CODEC;
+    private volatile int compressionThreshold = StepCodecs.DEFAULT_COMPRESSION_THRESHOLD;
+    private volatile BlobStore blobStore;
+    private volatile int offloadThreshold = BlobStore.DEFAULT_OFFLOAD_THRESHOLD;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+    public WorkflowRuntime(StateStore store) {
+        this.store = store;
+        this.leases = new LeaseManager(store);
+        this.timerStore = store instanceof TimerStore t ? t : null;
+        this.timers = timerStore == null ? null : new TimingWheel(10, 512);
+        this.workflowStore = store instanceof WorkflowStore w ? w : null;
+    }
+
+    // Persisted timers start firing once the first workflow type is registered
+    public void register(String type, Workflow workflow) {
+        if (workflowTypes.putIfAbsent(type, workflow) != null) {
+            throw new IllegalArgumentException("Workflow type already registered: " + type);
+        }
+        if (timers != null && timerLoaderStarted.compareAndSet(false, true)) {
+            executor.execute(this::loadTimers);
+        }
+    }
+
+    // Applied to every context started after the call
+    public void setCodec(StepCodec codec) {
+        this.codec = codec;
+    }
+
+    public void setCompressionThreshold(int bytes) {
+        this.compressionThreshold = bytes;
+    }
+
+    public void setBlobStore(BlobStore blobStore, int offloadThreshold) {
+        this.blobStore = blobStore;
+        this.offloadThreshold = offloadThreshold;
+    }
+
+    public void setRetryPolicy(RetryPolicy policy) {
+        this.retryPolicy = policy;
+    }
+
+    /**
+     * Starts an instance, or resumes it if the store already has history for
+     * {@code workflowId}. Starting an instance that is already running in
+     * this runtime returns the existing future.
+     */
+    public CompletableFuture<Void> start(String type, String workflowId) {
+        Workflow workflow = workflowTypes.get(type);
+        if (workflow == null) {
+            throw new IllegalArgumentException("Unknown workflow type: " + type);
+        }
+        CompletableFuture<Void> sleeping = suspended.remove(workflowId);
+        CompletableFuture<Void> future = sleeping != null ? sleeping : new CompletableFuture<>();
+        return dispatch(type, workflow, workflowId, future, null, false);
+    }
+
+    /**
+     * Queues an instance for whichever worker claims it next, in this or any
+     * other process sharing the store. Requires a {@link WorkflowStore}.
+     */
+    public void submit(String type, String workflowId) throws SQLException {
+        if (!workflowTypes.containsKey(type)) {
+            throw new IllegalArgumentException("Unknown workflow type: " + type);
+        }
+        requireWorkflowStore().enqueueWorkflow(workflowId, type);
+    }
+
+    /**
+     * Starts claiming queued instances, including ones left RUNNING by a
+     * worker that died, and running them here. Claims take up to
+     * {@code batchSize} instances in one write, and at most
+     * {@code maxRunning} claimed instances run at once.
+     */
+    public synchronized void startWorkers(int maxRunning, int batchSize) {
+        requireWorkflowStore();
+        if (poller != null) {
+            throw new IllegalStateException("Workers already started");
+        }
+        slots.release(maxRunning);
+        poller = Thread.ofPlatform().daemon().name("workflow-poller").start(() -> poll(batchSize));
+    }
+
+    private WorkflowStore requireWorkflowStore() {
+        if (workflowStore == null) {
+            throw new IllegalStateException(store.getClass().getSimpleName() + " has no workflow queue");
+        }
+        return workflowStore;
+    }
+
+    private void poll(int batchSize) {
+        long backlogStart = 0;
+        long backlog = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                slots.acquire();
+                int wanted = 1 + slots.drainPermits();
+                if (wanted > batchSize) {
+                    slots.release(wanted - batchSize);
+                    wanted = batchSize;
+                }
+                List<WorkflowRecord> batch = List.of();
+                try {
+                    batch = workflowStore.claimWorkflows(leases.getOwnerId(), leases.leaseExpiry(), wanted);
+                } catch (SQLException e) {
+                    log.warn("Failed to claim queued workflows", e);
+                }
+                slots.release(wanted - batch.size());
+                for (WorkflowRecord record : batch) {
+                    resume(record);
+                }
+
+                if (!batch.isEmpty()) {
+                    if (backlog == 0) {
+                        backlogStart = System.nanoTime();
+                    }
+                    backlog += batch.size();
+                    claimedCount.addAndGet(batch.size());
+                }
+                if (batch.size() < wanted) {
+                    if (backlog > 0) {
+                        long elapsedMs = Math.max(1, (System.nanoTime() - backlogStart) / 1_000_000);
+                        log.info("Claimed {} queued workflows in {} ms ({} workflows/s)",
+                                backlog, elapsedMs, backlog * 1000 / elapsedMs);
+                        backlog = 0;
+                    }
+                    Thread.sleep(POLL_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void resume(WorkflowRecord record) {
+        Workflow workflow = workflowTypes.get(record.workflowType());
+        if (workflow == null) {
+            // Left to its lease, so a worker that knows the type can claim it
+            log.warn("Claimed workflow {} of unregistered type {}", record.workflowId(), record.workflowType());
+            slots.release();
+            return;
+        }
+        CompletableFuture<Void> sleeping = suspended.remove(record.workflowId());
+        CompletableFuture<Void> future = sleeping != null ? sleeping : new CompletableFuture<>();
+        try {
+            if (dispatch(record.workflowType(), workflow, record.workflowId(), future, null, true) != future) {
+                // Already running here, started by hand
+                slots.release();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not run claimed workflow {}", record.workflowId(), e);
+            slots.release();
+        }
+    }
+
+    // Total instances claimed from the queue by this runtime's workers
+    public long claimedCount() {
+        return claimedCount.get();
+    }
+
+    private CompletableFuture<Void> dispatch(String type, Workflow workflow, String workflowId,
+                                             CompletableFuture<Void> future, TimerRecord fired, boolean claimed) {
+        CompletableFuture<Void> existing = running.putIfAbsent(workflowId, future);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            if (workflowStore != null) {
+                leases.acquireWorkflow(workflowId);
+            }
+            executor.execute(() -> execute(type, workflow, workflowId, future, fired, claimed));
+        } catch (RuntimeException e) {
+            leases.releaseWorkflow(workflowId);
+            running.remove(workflowId, future);
+            throw e;
+        }
+        return future;
+    }
+
+    private void execute(String type, Workflow workflow, String workflowId, CompletableFuture<Void> future,
+                         TimerRecord fired, boolean claimed) {
+        try {
+            // A claimed instance is already RUNNING here, and so is one its timer woke
+            if (workflowStore != null && !claimed && fired == null) {
+                workflowStore.startWorkflow(workflowId, type, leases.getOwnerId(), leases.leaseExpiry());
+            }
+            run(type, workflow, workflowId, future, fired);
+        } catch (SQLException e) {
+            log.error("Workflow {} ({}) could not be recorded as running", workflowId, type, e);
+            leases.releaseWorkflow(workflowId);
+            running.remove(workflowId, future);
+            future.completeExceptionally(e);
+        } finally {
+            if (claimed) {
+                slots.release();
+            }
+        }
+    }
+
+    private void run(String type, Workflow workflow, String workflowId, CompletableFuture<Void> future,
+                     TimerRecord fired) {
+        String sleepingOn = null;
+        try {
+            runToEnd(workflow, workflowId);
+            finish(workflowId, WorkflowStatus.COMPLETED);
+            running.remove(workflowId, future);
+            future.complete(null);
+        } catch (WorkflowSuspendedException s) {
+            sleepingOn = s.getTimerId();
+            suspend(type, workflowId, future, s);
+        } catch (Exception e) {
+            log.error("Workflow {} ({}) failed", workflowId, type, e);
+            finish(workflowId, WorkflowStatus.FAILED);
+            running.remove(workflowId, future);
+            future.completeExceptionally(e);
+        }
+        // The timer that resumed this run is done with once the run has moved past it
+        if (fired != null && !fired.timerId().equals(sleepingOn)) {
+            deleteTimer(fired);
+        }
+    }
+
+    // Each continueAsNew starts the workflow over on a fresh context
+    private void runToEnd(Workflow workflow, String workflowId) throws Exception {
+        while (true) {
+            try (DurableContext ctx = new DurableContext(workflowId, store, executor, leases)) {
+                ctx.setCodec(codec);
+                ctx.setCompressionThreshold(compressionThreshold);
+                ctx.setRetryPolicy(retryPolicy);
+                ctx.setSuspendOnSleep(timerStore != null);
+                if (blobStore != null) {
+                    ctx.setBlobStore(blobStore, offloadThreshold);
+                }
+                workflow.run(ctx);
+                return;
+            } catch (WorkflowContinuedException c) {
+                log.debug("Workflow {} continued as new", workflowId);
+            }
+        }
+    }
+
+    private void suspend(String type, String workflowId, CompletableFuture<Void> future,
+                         WorkflowSuspendedException s) {
+        TimerRecord timer = new TimerRecord(workflowId, s.getTimerId(), type, s.getFireAt());
+        try {
+            timerStore.scheduleTimer(timer);
+        } catch (Exception e) {
+            log.error("Workflow {} ({}) failed to persist its timer", workflowId, type, e);
+            finish(workflowId, WorkflowStatus.FAILED);
+            running.remove(workflowId, future);
+            future.completeExceptionally(e);
+            return;
+        }
+        finish(workflowId, WorkflowStatus.SLEEPING);
+        suspended.put(workflowId, future);
+        running.remove(workflowId, future);
+        log.debug("Workflow {} unloaded until {}", workflowId, s.getFireAt());
+        if (s.getFireAt() < System.currentTimeMillis() + TIMER_HORIZON_MS) {
+            arm(timer);
+        }
+    }
+
+    // Loads the timers due within the horizon, then reschedules itself on the wheel
+    private void loadTimers() {
+        long next = TIMER_HORIZON_MS / 2;
+        try {
+            List<TimerRecord> due = timerStore.dueTimers(System.currentTimeMillis() + TIMER_HORIZON_MS,
+                    TIMER_LOAD_LIMIT);
+            due.forEach(this::arm);
+            if (due.size() == TIMER_LOAD_LIMIT) {
+                // More are due than one scan loads; come back once the wheel has fired some
+                next = 1000;
+            }
+        } catch (Exception e) {
+            log.warn("Failed to load timers", e);
+        }
+        timers.schedule(System.currentTimeMillis() + next, () -> execute(this::loadTimers));
+    }
+
+    private void arm(TimerRecord timer) {
+        if (armed.add(new StepKey(timer.workflowId(), timer.timerId()))) {
+            timers.schedule(timer.fireAt(), () -> execute(() -> fire(timer)));
+        }
+    }
+
+    private void fire(TimerRecord timer) {
+        armed.remove(new StepKey(timer.workflowId(), timer.timerId()));
+        Workflow workflow = workflowTypes.get(timer.workflowType());
+        if (workflow == null) {
+            // Stays in the store; the next scan retries once the type is registered
+            log.warn("Timer of workflow {} fired for unregistered type {}", timer.workflowId(), timer.workflowType());
+            return;
+        }
+        if (workflowStore != null && !wake(timer)) {
+            return;
+        }
+        CompletableFuture<Void> sleeping = suspended.remove(timer.workflowId());
+        CompletableFuture<Void> future = sleeping != null ? sleeping : new CompletableFuture<>();
+        if (dispatch(timer.workflowType(), workflow, timer.workflowId(), future, timer, false) != future) {
+            // Already running again (started by hand); its own run passes the timer
+            deleteTimer(timer);
+        }
+    }
+
+    /**
+     * Claims the instance for this worker by moving it from SLEEPING to
+     * RUNNING, so a timer fired by several processes, or re-armed by a scan
+     * after its instance went on, dispatches at most one run. When the claim
+     * fails, a timer left behind by a finished instance, or by one running
+     * here, is deleted; one whose instance runs elsewhere is left to that run.
+     */
+    private boolean wake(TimerRecord timer) {
+        String workflowId = timer.workflowId();
+        try {
+            if (workflowStore.wakeWorkflow(workflowId, leases.getOwnerId(), leases.leaseExpiry())) {
+                return true;
+            }
+            WorkflowRecord instance = workflowStore.getWorkflow(workflowId);
+            String status = instance == null ? null : instance.status();
+            if (status == null || status.equals(WorkflowStatus.COMPLETED.name())
+                    || status.equals(WorkflowStatus.FAILED.name()) || running.containsKey(workflowId)) {
+                deleteTimer(timer);
+            }
+            log.debug("Timer {} of workflow {} not fired: instance is {}", timer.timerId(), workflowId, status);
+        } catch (SQLException e) {
+            // Stays in the store; the next scan retries it
+            log.warn("Failed to wake workflow {} for timer {}", workflowId, timer.timerId(), e);
+        }
+        return false;
+    }
+
+    // Releases the instance's lease and records where it ended up
+    private void finish(String workflowId, WorkflowStatus status) {
+        if (workflowStore == null) {
+            return;
+        }
+        leases.releaseWorkflow(workflowId);
+        try {
+            workflowStore.updateWorkflow(workflowId, status);
+        } catch (SQLException e) {
+            log.warn("Failed to record workflow {} as {}", workflowId, status, e);
+        }
+    }
+
+    private void deleteTimer(TimerRecord timer) {
+        try {
+            timerStore.deleteTimer(timer.workflowId(), timer.timerId());
+        } catch (Exception e) {
+            log.warn("Failed to delete timer {} of workflow {}", timer.timerId(), timer.workflowId(), e);
+        }
+    }
+
+    // Hands timer work off the wheel's driver thread; dropped once the runtime is shutting down
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.debug("Runtime closed, dropping timer task");
+        }
+    }
+
+    public int runningCount() {
+        return running.size();
+    }
+
+    // Instances started by this runtime that are unloaded until a timer fires
+    public int suspendedCount() {
+        return suspended.size();
+    }
+
+    /**
+     * Stops accepting work and waits for running instances to finish.
+     */
+    @Override
+    public void close() {
+        Thread poller = this.poller;
+        if (poller != null) {
+            poller.interrupt();
+            try {
+                poller.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (timers != null) {
+            timers.close();
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                log.info("Waiting for {} workflows to finish", running.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+        leases.close();
+    }
+}
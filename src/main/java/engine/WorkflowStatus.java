@@ -0,0 +1,11 @@
+package engine;
+
+public enum WorkflowStatus {
+    // Queued, waiting for a worker to claim it
+    PENDING,
+    RUNNING,
+    // Unloaded until a timer fires
+    SLEEPING,
+    COMPLETED,
+    FAILED
+}
@@ -0,0 +1,48 @@
+package engine;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Optional {@link StateStore} capability: a table of workflow instances that
+ * doubles as a persistent run queue. {@link WorkflowRuntime} workers claim
+ * queued instances from it, and instances whose worker died are claimed
+ * again once their lease expires.
+ */
+public interface WorkflowStore {
+
+    // Queues an instance as PENDING unless the store already knows it
+    void enqueueWorkflow(String workflowId, String workflowType) throws SQLException;
+
+    // Records an instance as RUNNING under owner's lease, whatever state it was in
+    void startWorkflow(String workflowId, String workflowType, String owner, long leaseExpiresAt)
+            throws SQLException;
+
+    /**
+     * Atomically moves up to {@code limit} runnable instances to RUNNING under
+     * {@code owner}'s lease and returns them, oldest first. Runnable means
+     * PENDING, or RUNNING with an expired lease.
+     */
+    List<WorkflowRecord> claimWorkflows(String owner, long leaseExpiresAt, int limit) throws SQLException;
+
+    /**
+     * Moves a SLEEPING instance to RUNNING under {@code owner}'s lease, for
+     * the worker whose timer woke it. Returns false, changing nothing, if the
+     * instance is in any other state: another worker woke it first, or it was
+     * started again by hand, or it has already finished.
+     */
+    boolean wakeWorkflow(String workflowId, String owner, long leaseExpiresAt) throws SQLException;
+
+    /**
+     * Extends the leases of the given RUNNING instances that are still held
+     * by {@code owner}, in one write.
+     */
+    void renewWorkflowLeases(String owner, Collection<String> workflowIds, long leaseExpiresAt)
+            throws SQLException;
+
+    // Moves an instance to a new status and releases its lease
+    void updateWorkflow(String workflowId, WorkflowStatus status) throws SQLException;
+
+    WorkflowRecord getWorkflow(String workflowId) throws SQLException;
+}
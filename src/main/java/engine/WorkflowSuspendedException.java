@@ -0,0 +1,34 @@
+package engine;
+
+/**
+ * Thrown by {@link DurableContext#sleep} to unwind a workflow that is unloaded
+ * until its timer fires. {@link WorkflowRuntime} catches it and persists the
+ * timer; workflow code must let it propagate.
+ */
+public class WorkflowSuspendedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String workflowId;
+    private final String timerId;
+    private final long fireAt;
+
+    public WorkflowSuspendedException(String workflowId, String timerId, long fireAt) {
+        super("Workflow " + workflowId + " sleeps until " + fireAt, null, false, false);
+        this.workflowId = workflowId;
+        this.timerId = timerId;
+        this.fireAt = fireAt;
+    }
+
+    public String getWorkflowId() {
+        return workflowId;
+    }
+
+    public String getTimerId() {
+        return timerId;
+    }
+
+    public long getFireAt() {
+        return fireAt;
+    }
+}
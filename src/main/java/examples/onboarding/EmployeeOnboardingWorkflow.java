@@ -6,11 +6,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import engine.DurableContext;
+import engine.Workflow;
 
-public class EmployeeOnboardingWorkflow {
+public class EmployeeOnboardingWorkflow implements Workflow {
 
     private static final Logger log = LoggerFactory.getLogger(EmployeeOnboardingWorkflow.class);
 
+    @Override
     public void run(DurableContext ctx) throws Exception {
 
         // Step 1: Create employee (sequential)
@@ -20,26 +22,14 @@ public class EmployeeOnboardingWorkflow {
         });
 
         // Step 2 & 3: Assign laptop & provision access (parallel)
-        CompletableFuture<String> itFuture = CompletableFuture.supplyAsync(() -> {
-            try {
-                return ctx.step(() -> {
-                    log.info("Assigning laptop & email for {}", employeeId);
-                    return "IT-ASSIGNED";
-                });
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+        CompletableFuture<String> itFuture = ctx.stepAsync(() -> {
+            log.info("Assigning laptop & email for {}", employeeId);
+            return "IT-ASSIGNED";
         });
 
-        CompletableFuture<String> accessFuture = CompletableFuture.supplyAsync(() -> {
-            try {
-                return ctx.step(() -> {
-                    log.info("Provisioning system access for {}", employeeId);
-                    return "ACCESS-PROVISIONED";
-                });
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+        CompletableFuture<String> accessFuture = ctx.stepAsync(() -> {
+            log.info("Provisioning system access for {}", employeeId);
+            return "ACCESS-PROVISIONED";
         });
 
         CompletableFuture.allOf(itFuture, accessFuture).join();
@@ -1,14 +1,51 @@
 package engine;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.core.type.TypeReference;
 
 public class DurableEngineTest {
 
+    public record Laptop(String serial, int memoryGb) {
+    }
+
     @Test
     void testStepRecordCreation() {
         // Add a dummy updatedAt timestamp
@@ -29,9 +66,1026 @@ public class DurableEngineTest {
 
     @Test
     void testSQLiteStoreInitialization() throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+             SQLiteStore store = new SQLiteStore(connection)) {
+            assertNotNull(store);
+        }
+    }
+
+    @Test
+    void testConcurrentWritesAreGroupCommitted() throws Exception {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        // A generous linger so the writers overlap even on a loaded machine
+        SQLiteStore store = new SQLiteStore(connection, 16, 20);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String stepId = "step-" + i;
+            futures.add(pool.submit(() -> {
+                store.insertInProgress("wf1", stepId);
+                store.markCompleted("wf1", stepId, "\"" + stepId + "\"");
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        for (int i = 0; i < 100; i++) {
+            StepRecord record = store.getStep("wf1", "step-" + i);
+            assertEquals(StepStatus.COMPLETED.name(), record.getStatus());
+            assertEquals("\"step-" + i + "\"", record.getOutput());
+        }
+        // Eight writers queue up behind each commit, so their writes share transactions
+        assertEquals(200, store.committedWrites());
+        assertTrue(store.commitCount() < store.committedWrites(),
+                store.commitCount() + " commits for " + store.committedWrites() + " writes");
+
+        pool.shutdown();
+        store.close();
+        connection.close();
+    }
+
+    @Test
+    void testWritesRacingCloseFailInsteadOfHanging() throws Exception {
+        for (SQLiteStore.Durability durability : SQLiteStore.Durability.values()) {
+            Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+            SQLiteStore store = new SQLiteStore(connection, 16, 0, durability);
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                String workflowId = "wf" + t;
+                writers.add(pool.submit(() -> {
+                    for (int i = 0; ; i++) {
+                        try {
+                            store.insertInProgress(workflowId, "step-" + i);
+                        } catch (SQLException closed) {
+                            return null;
+                        }
+                    }
+                }));
+            }
+            eventually(() -> store.committedWrites() > 0);
+            store.close();
+            for (Future<?> writer : writers) {
+                writer.get(10, TimeUnit.SECONDS);
+            }
+            pool.shutdown();
+            connection.close();
+        }
+    }
+
+    @Test
+    void testResumeReplaysCompletedStepsFromPreloadedHistory() throws Exception {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        SQLiteStore store = new SQLiteStore(connection);
+
+        DurableContext first = new DurableContext("wf1", store);
+        assertEquals("a", first.step(() -> "a"));
+        assertEquals("b", first.step(() -> "b"));
+
+        DurableContext resumed = new DurableContext("wf1", store);
+        assertEquals("a", resumed.step(() -> { throw new AssertionError("step 1 re-executed"); }));
+        assertEquals("b", resumed.step(() -> { throw new AssertionError("step 2 re-executed"); }));
+        assertEquals("c", resumed.step(() -> "c"));
+        assertEquals(3, store.loadHistory("wf1").size());
+
+        store.close();
+        connection.close();
+    }
+
+    @Test
+    void testInMemoryStoreRecordsStepLifecycle() throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        DurableContext ctx = new DurableContext("wf1", store);
+
+        assertEquals("done", ctx.step("ok", () -> "done"));
+        assertEquals(StepStatus.COMPLETED.name(), store.getStep("wf1", "ok").getStatus());
+
+        store.insertInProgress("wf1", "broken");
+        store.markFailed("wf1", "broken", "boom");
+        assertEquals(StepStatus.FAILED.name(), store.getStep("wf1", "broken").getStatus());
+        assertEquals(2, store.loadHistory("wf1").size());
+    }
+
+    @Test
+    void testStepAsyncRunsOnExecutorAndReplays() throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            CompletableFuture<String> a = ctx.stepAsync(() -> "a");
+            CompletableFuture<String> b = ctx.stepAsync(() -> "b");
+            assertEquals("a", a.join());
+            assertEquals("b", b.join());
+        }
+
+        try (DurableContext resumed = new DurableContext("wf1", store)) {
+            CompletableFuture<String> a = resumed.stepAsync(() -> { throw new AssertionError("re-executed"); });
+            assertTrue(a.isDone());
+            assertEquals("a", a.join());
+        }
+    }
+
+    @Test
+    void testForkedBranchesReplayTheirOwnResults() throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        int branches = 20;
+
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < branches; i++) {
+                int index = i;
+                futures.add(ctx.forkAsync(branch -> {
+                    Thread.sleep((branches - index) % 5);
+                    String first = branch.step(() -> "b" + index);
+                    return branch.step(() -> first + "-done");
+                }));
+            }
+            for (int i = 0; i < branches; i++) {
+                assertEquals("b" + i + "-done", futures.get(i).join());
+            }
+        }
+
+        try (DurableContext resumed = new DurableContext("wf1", store)) {
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < branches; i++) {
+                futures.add(resumed.forkAsync(branch -> {
+                    String first = branch.step(() -> { throw new AssertionError("re-executed"); });
+                    return branch.step(() -> first + "-again");
+                }));
+            }
+            for (int i = 0; i < branches; i++) {
+                assertEquals("b" + i + "-done", futures.get(i).join());
+            }
+        }
+        assertEquals("\"b3\"", store.getStep("wf1", "fork-4/step-1").getOutput());
+    }
+
+    @Test
+    void testRuntimeRunsManyWorkflowsConcurrently() throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        try (WorkflowRuntime runtime = new WorkflowRuntime(store)) {
+            runtime.register("counter", ctx -> {
+                int a = ctx.step(() -> 1);
+                ctx.stepAsync(() -> a + 1).join();
+            });
+
+            List<CompletableFuture<Void>> runs = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                runs.add(runtime.start("counter", "wf-" + i));
+            }
+            CompletableFuture.allOf(runs.toArray(CompletableFuture[]::new)).join();
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("2", store.getStep("wf-" + i, "step-2").getOutput());
+        }
+    }
+
+    @Test
+    void testPooledReadersSeeCommittedWrites(@TempDir Path dir) throws Exception {
+        SQLiteStore store = new SQLiteStore("jdbc:sqlite:" + dir.resolve("pooled.db"), 4, 64, 0);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String stepId = "step-" + i;
+            futures.add(pool.submit(() -> {
+                store.insertInProgress("wf1", stepId);
+                store.markCompleted("wf1", stepId, "1");
+                assertEquals(StepStatus.COMPLETED.name(), store.getStep("wf1", stepId).getStatus());
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        assertEquals(200, store.loadHistory("wf1").size());
+
+        pool.shutdown();
+        store.close();
+    }
+
+    @Test
+    void testTypedStepsReplayIntoTheirDeclaredTypes() throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            ctx.step(Laptop.class, () -> new Laptop("SN-1", 32));
+            ctx.step(new TypeReference<List<Laptop>>() {}, () -> List.of(new Laptop("SN-2", 16)));
+        }
+
+        try (DurableContext resumed = new DurableContext("wf1", store)) {
+            Laptop laptop = resumed.step(Laptop.class, () -> { throw new AssertionError("re-executed"); });
+            List<Laptop> laptops = resumed.step(new TypeReference<List<Laptop>>() {},
+                    () -> { throw new AssertionError("re-executed"); });
+            assertEquals(new Laptop("SN-1", 32), laptop);
+            assertEquals(List.of(new Laptop("SN-2", 16)), laptops);
+        }
+    }
+
+    @Test
+    void testBinaryCodecCompressesAndOldJsonRowsStillRead() throws Exception {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (Statement stmt = connection.createStatement()) {
+            // Table as created before step codecs existed
+            stmt.execute("CREATE TABLE steps (workflow_id TEXT, step_id TEXT, status TEXT, output TEXT, " +
+                         "updated_at INTEGER, PRIMARY KEY (workflow_id, step_id))");
+            stmt.execute("INSERT INTO steps VALUES ('wf1', 'step-1', 'COMPLETED', '\"legacy\"', 0)");
+        }
+        SQLiteStore store = new SQLiteStore(connection);
+
+        List<String> records = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            records.add("provisioning-record-" + i);
+        }
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            ctx.setCodec(StepCodecs.SMILE_CODEC);
+            ctx.setCompressionThreshold(1024);
+            assertEquals("legacy", ctx.step(String.class, () -> "unused"));
+            ctx.step(new TypeReference<List<String>>() {}, () -> records);
+        }
+
+        StepRecord stored = store.getStep("wf1", "step-2");
+        assertEquals(StepCodecs.SMILE | StepCodecs.COMPRESSED, stored.getCodec());
+        try (DurableContext resumed = new DurableContext("wf1", store)) {
+            assertEquals("legacy", resumed.step(String.class, () -> "unused"));
+            assertEquals(records, resumed.step(new TypeReference<List<String>>() {}, () -> List.of()));
+        }
+
+        store.close();
+        connection.close();
+    }
+
+    @Test
+    void testLargeOutputsAreOffloadedAndLoadedLazily(@TempDir Path dir) throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        BlobStore blobs = new BlobStore(dir.resolve("blobs"));
+        String document = "x".repeat(10_000);
+
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            ctx.setBlobStore(blobs, 1000);
+            ctx.setCompressionThreshold(Integer.MAX_VALUE);
+            ctx.step(String.class, () -> document);
+            ctx.step(String.class, () -> document);
+        }
+
+        StepRecord first = store.getStep("wf1", "step-1");
+        StepRecord second = store.getStep("wf1", "step-2");
+        assertTrue(StepCodecs.isBlobReference(first.getCodec()));
+        assertEquals(64, first.getPayload().length);
+        assertEquals(new String(first.getPayload()), new String(second.getPayload()));
+
+        try (DurableContext resumed = new DurableContext("wf1", store)) {
+            resumed.setBlobStore(blobs, 1000);
+            LazyResult<String> lazy = resumed.stepLazy(String.class, () -> "unused");
+            assertFalse(lazy.isLoaded());
+            assertEquals(document, lazy.get());
+            assertEquals(document, resumed.step(String.class, () -> "unused"));
+        }
+    }
+
+    @Test
+    void testExpiredLeasesAreTakenOverAndLiveOnesRenewed() throws Exception {
         Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
         SQLiteStore store = new SQLiteStore(connection);
-        assertNotNull(store);
+        long now = System.currentTimeMillis();
+        store.insertInProgress("crashed", "step-1", "dead-worker", now - 1);
+        store.insertInProgress("busy", "step-1", "live-worker", now + 60_000);
+
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try (LeaseManager leases = new LeaseManager(store, Duration.ofMillis(300), Duration.ofMillis(50))) {
+            DurableContext crashed = new DurableContext("crashed", store, executor, leases);
+            assertEquals("retried", crashed.step(() -> "retried"));
+            assertNull(store.getStep("crashed", "step-1").getOwner());
+
+            DurableContext busy = new DurableContext("busy", store, executor, leases);
+            assertThrows(IllegalStateException.class, () -> busy.step(() -> "stolen"));
+
+            DurableContext slow = new DurableContext("slow", store, executor, leases);
+            long renewed = slow.step("long", () -> {
+                long first = store.getStep("slow", "long").getLeaseExpiresAt();
+                eventually(() -> store.getStep("slow", "long").getLeaseExpiresAt() > first);
+                return store.getStep("slow", "long").getLeaseExpiresAt() - first;
+            });
+            assertTrue(renewed > 0, "lease was not renewed while the step ran");
+            // Idle again: the heartbeat is cancelled at its next tick
+            eventually(() -> !leases.isHeartbeating());
+        }
+
+        executor.shutdown();
+        store.close();
+        connection.close();
+    }
+
+    @Test
+    void testSlowStoreDoesNotDelayOtherWorkersRenewals() throws Exception {
+        CountDownLatch unblock = new CountDownLatch(1);
+        AtomicInteger stuckCalls = new AtomicInteger();
+        InMemoryStore stuck = new InMemoryStore() {
+            @Override
+            public void renewLeases(String owner, Collection<StepKey> steps, long leaseExpiresAt) {
+                stuckCalls.incrementAndGet();
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        InMemoryStore healthy = new InMemoryStore();
+        StepKey step = new StepKey("wf1", "step-1");
+        try (LeaseManager slow = new LeaseManager(stuck, Duration.ofMillis(300), Duration.ofMillis(20));
+             LeaseManager fast = new LeaseManager(healthy, Duration.ofMillis(300), Duration.ofMillis(20))) {
+            slow.acquire(step);
+            long first = fast.acquire(step);
+            healthy.insertInProgress("wf1", "step-1", fast.getOwnerId(), first);
+
+            // A blocked store must not hold up another worker's renewal
+            eventually(() -> healthy.getStep("wf1", "step-1").getLeaseExpiresAt() > first);
+            // The stuck renewal is never overlapped by the next ticks
+            assertEquals(1, stuckCalls.get());
+        } finally {
+            unblock.countDown();
+        }
+    }
+
+    @Test
+    void testFailedStepsAreRetriedThenRecordedAsFailed() throws Exception {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        SQLiteStore store = new SQLiteStore(connection);
+        RetryPolicy policy = new RetryPolicy(3, Duration.ofMillis(10), Duration.ofMillis(50), 2.0)
+                .retryOn(IOException.class);
+        AtomicInteger calls = new AtomicInteger();
+
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            String flaky = ctx.step(String.class, policy, () -> {
+                if (calls.incrementAndGet() < 3) {
+                    throw new IOException("downstream unavailable");
+                }
+                return "ok";
+            });
+            assertEquals("ok", flaky);
+            assertEquals(2, store.getStep("wf1", "step-1").getAttempts());
+
+            CompletableFuture<String> async = ctx.stepAsync(String.class, policy, () -> {
+                throw new IOException("still down");
+            });
+            CompletionException exhausted = assertThrows(CompletionException.class, async::join);
+            assertEquals(3, ((StepFailedException) exhausted.getCause()).getAttempts());
+
+            assertThrows(StepFailedException.class,
+                    () -> ctx.step(policy, () -> { throw new IllegalArgumentException("bad input"); }));
+            StepRecord failed = store.getStep("wf1", "step-3");
+            assertEquals(StepStatus.FAILED.name(), failed.getStatus());
+            assertEquals(1, failed.getAttempts());
+        }
+
+        try (DurableContext resumed = new DurableContext("wf1", store)) {
+            assertEquals("ok", resumed.step(String.class, policy, () -> "re-executed"));
+            assertThrows(StepFailedException.class, () -> resumed.step(() -> "unused"));
+            StepFailedException replayed = assertThrows(StepFailedException.class,
+                    () -> resumed.step(() -> { throw new AssertionError("failed step re-executed"); }));
+            assertTrue(replayed.getMessage().contains("bad input"));
+        }
+
+        store.close();
+        connection.close();
+    }
+
+    @Test
+    void testResumedWorkflowWaitsOutTheRestOfItsBackoff(@TempDir Path dir) throws Exception {
+        SQLiteStore store = new SQLiteStore("jdbc:sqlite:" + dir.resolve("backoff.db"));
+        RetryPolicy policy = new RetryPolicy(2, Duration.ofMillis(800), Duration.ofMillis(800), 1.0);
+        List<Long> calls = new CopyOnWriteArrayList<>();
+        Workflow flaky = ctx -> ctx.step(String.class, policy, () -> {
+            calls.add(System.currentTimeMillis());
+            if (calls.size() == 1) {
+                throw new IOException("downstream unavailable");
+            }
+            return "ok";
+        });
+
+        long retryAt;
+        try (WorkflowRuntime runtime = new WorkflowRuntime(store)) {
+            runtime.register("flaky", flaky);
+            runtime.start("flaky", "wf1");
+            // The backoff unloads the workflow behind a durable timer instead of parking its thread
+            eventually(() -> runtime.suspendedCount() == 1);
+            retryAt = store.getStep("wf1", "step-1").getRetryAt();
+            // Jittered into the upper half of the 800 ms backoff
+            assertTrue(retryAt >= calls.get(0) + 400, "retry due " + (retryAt - calls.get(0)) + " ms after the failure");
+            assertEquals(retryAt, store.dueTimers(Long.MAX_VALUE, 10).get(0).fireAt());
+        }
+
+        // Restarted inside the backoff: the step is not retried before the recorded time
+        try (WorkflowRuntime runtime = new WorkflowRuntime(store)) {
+            runtime.register("flaky", flaky);
+            runtime.start("flaky", "wf1").get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(2, calls.size());
+        assertTrue(calls.get(1) >= retryAt, "retried " + (retryAt - calls.get(1)) + " ms early");
+        assertEquals(StepStatus.COMPLETED.name(), store.getStep("wf1", "step-1").getStatus());
+        store.close();
+    }
+
+    @Test
+    void testSleepingWorkflowsUnloadAndResumeWhenTheTimerFires() throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        AtomicInteger before = new AtomicInteger();
+        try (WorkflowRuntime runtime = new WorkflowRuntime(store)) {
+            runtime.register("reminder", ctx -> {
+                ctx.step(() -> before.incrementAndGet());
+                ctx.sleep(Duration.ofSeconds(1));
+                ctx.step("sent", () -> "reminder sent");
+            });
+            CompletableFuture<Void> done = runtime.start("reminder", "wf1");
+
+            eventually(() -> runtime.suspendedCount() == 1);
+            assertEquals(0, runtime.runningCount());
+            assertEquals(1, store.dueTimers(Long.MAX_VALUE, 10).size());
+
+            done.get(5, TimeUnit.SECONDS);
+            assertEquals(1, before.get());
+            assertEquals(StepStatus.COMPLETED.name(), store.getStep("wf1", "sent").getStatus());
+        }
+        assertTrue(store.dueTimers(Long.MAX_VALUE, 10).isEmpty());
+    }
+
+    @Test
+    void testTimerFiredByTwoRuntimesResumesTheWorkflowOnce(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("timers.db");
+        AtomicInteger after = new AtomicInteger();
+        Workflow reminder = ctx -> {
+            ctx.sleep(Duration.ofSeconds(1));
+            ctx.step("sent", () -> after.incrementAndGet());
+        };
+        try (SQLiteStore first = new SQLiteStore(url); SQLiteStore second = new SQLiteStore(url);
+             WorkflowRuntime a = new WorkflowRuntime(first); WorkflowRuntime b = new WorkflowRuntime(second)) {
+            a.register("reminder", reminder);
+            a.start("reminder", "wf1");
+            eventually(() -> WorkflowStatus.SLEEPING.name().equals(statusOf(second, "wf1")));
+            // b's first timer scan picks up a's timer: both runtimes fire it
+            b.register("reminder", reminder);
+            eventually(() -> WorkflowStatus.COMPLETED.name().equals(statusOf(second, "wf1")));
+            eventually(() -> second.dueTimers(Long.MAX_VALUE, 10).isEmpty());
+            assertEquals(1, after.get());
+
+            // A stale timer of a finished instance is dropped without a run
+            second.scheduleTimer(new TimerRecord("wf1", "timer-1", "reminder", System.currentTimeMillis()));
+            try (WorkflowRuntime late = new WorkflowRuntime(second)) {
+                late.register("reminder", reminder);
+                eventually(() -> second.dueTimers(Long.MAX_VALUE, 10).isEmpty());
+            }
+            assertEquals(1, after.get());
+            assertEquals(WorkflowStatus.COMPLETED.name(), statusOf(second, "wf1"));
+        }
+    }
+
+    private static String statusOf(WorkflowStore store, String workflowId) throws SQLException {
+        WorkflowRecord record = store.getWorkflow(workflowId);
+        return record == null ? null : record.status();
+    }
+
+    interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    // Polls instead of sleeping a fixed time, so a loaded machine only makes the test slower
+    private static void eventually(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("condition not met within 10 s");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void testTimingWheelFiresAcrossLevelsInDeadlineOrder() throws Exception {
+        List<Integer> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch all = new CountDownLatch(4);
+        try (TimingWheel wheel = new TimingWheel(1, 8)) {
+            long now = System.currentTimeMillis();
+            // 8ms per first-level turn: these land on three different levels
+            wheel.schedule(now + 150, () -> { fired.add(150); all.countDown(); });
+            wheel.schedule(now + 40, () -> { fired.add(40); all.countDown(); });
+            wheel.schedule(now + 5, () -> { fired.add(5); all.countDown(); });
+            wheel.schedule(now - 1, () -> { fired.add(0); all.countDown(); });
+            assertTrue(all.await(10, TimeUnit.SECONDS));
+            assertTrue(System.currentTimeMillis() >= now + 149);
+        }
+        assertEquals(List.of(0, 5, 40, 150), fired);
+    }
+
+    @Test
+    void testWorkersClaimQueuedAndAbandonedWorkflows(@TempDir Path dir) throws Exception {
+        SQLiteStore store = new SQLiteStore("jdbc:sqlite:" + dir.resolve("queue.db"));
+        AtomicInteger runs = new AtomicInteger();
+        // Left RUNNING by a worker that died: its lease has run out
+        store.startWorkflow("crashed", "count", "dead-worker", System.currentTimeMillis() - 1);
+
+        try (WorkflowRuntime runtime = new WorkflowRuntime(store)) {
+            runtime.register("count", ctx -> ctx.step(() -> runs.incrementAndGet()));
+            for (int i = 0; i < 200; i++) {
+                runtime.submit("count", "wf-" + i);
+            }
+            runtime.startWorkers(16, 32);
+
+            eventually(() -> runtime.claimedCount() >= 201);
+        }
+
+        assertEquals(201, runs.get());
+        assertEquals(WorkflowStatus.COMPLETED.name(), store.getWorkflow("crashed").status());
+        assertEquals(WorkflowStatus.COMPLETED.name(), store.getWorkflow("wf-199").status());
+        assertTrue(store.claimWorkflows("late-worker", Long.MAX_VALUE, 10).isEmpty());
+        store.close();
+    }
+
+    @Test
+    void testProcessesSharingADatabaseClaimEachStepOnce(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("shared.db");
+        SQLiteStore first = new SQLiteStore(url);
+        SQLiteStore second = new SQLiteStore(url);
+        int workflows = 20;
+        for (int i = 0; i < workflows; i++) {
+            first.insertInProgress("wf-" + i, "step-1", "dead-worker", System.currentTimeMillis() - 1);
+        }
+
+        // A stale version loses against the row as it is now
+        StepRecord seen = first.getStep("wf-0", "step-1");
+        assertTrue(first.claimStep("wf-0", "step-1", "a", Long.MAX_VALUE, seen) > seen.getVersion());
+        assertEquals(-1, second.claimStep("wf-0", "step-1", "b", Long.MAX_VALUE, seen));
+        first.markCompleted("wf-0", "step-1", "\"done\"".getBytes(), StepCodecs.JSON);
+        assertEquals(-1, second.claimStep("wf-0", "step-1", "b", Long.MAX_VALUE, null));
+
+        AtomicInteger runs = new AtomicInteger();
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try (LeaseManager leasesA = new LeaseManager(first); LeaseManager leasesB = new LeaseManager(second)) {
+            CountDownLatch go = new CountDownLatch(1);
+            List<Future<?>> racers = new ArrayList<>();
+            for (int i = 1; i < workflows; i++) {
+                String workflowId = "wf-" + i;
+                for (SQLiteStore store : List.of(first, second)) {
+                    LeaseManager leases = store == first ? leasesA : leasesB;
+                    racers.add(executor.submit(() -> {
+                        DurableContext ctx = new DurableContext(workflowId, store, executor, leases);
+                        go.await();
+                        try {
+                            return ctx.step(() -> runs.incrementAndGet());
+                        } catch (IllegalStateException lost) {
+                            return null;
+                        }
+                    }));
+                }
+            }
+            go.countDown();
+            for (Future<?> racer : racers) {
+                racer.get(10, TimeUnit.SECONDS);
+            }
+        }
+
+        assertEquals(workflows - 1, runs.get());
+        for (int i = 1; i < workflows; i++) {
+            assertEquals(StepStatus.COMPLETED.name(), second.getStep("wf-" + i, "step-1").getStatus());
+        }
+        executor.shutdown();
+        first.close();
+        second.close();
+    }
+
+    @Test
+    void testWorkerWhoseLeaseWasTakenOverCannotRecordItsOutcome(@TempDir Path dir) throws Exception {
+        SQLiteStore sqlite = new SQLiteStore("jdbc:sqlite:" + dir.resolve("fence.db"));
+        // Write-behind acknowledges most writes early, but not fenced ones
+        SQLiteStore buffered = new SQLiteStore("jdbc:sqlite:" + dir.resolve("buffered.db"),
+                SQLiteStore.Durability.BUFFERED);
+        JournalStore journal = new JournalStore(dir.resolve("journal"));
+        for (StateStore store : List.of(new InMemoryStore(), sqlite, buffered, journal)) {
+            long expired = System.currentTimeMillis() - 1;
+            long stalled = store.claimStep("wf1", "step-1", "stalled", expired, null);
+            StepRecord seen = store.getStep("wf1", "step-1");
+            long taken = store.claimStep("wf1", "step-1", "new-owner", Long.MAX_VALUE, seen);
+            assertTrue(taken > stalled);
+
+            assertFalse(store.markCompleted("wf1", "step-1", "\"stale\"".getBytes(), StepCodecs.JSON,
+                    "stalled", stalled));
+            assertFalse(store.markFailed("wf1", "step-1", 1, "stale", "stalled", stalled));
+            assertTrue(store.markCompleted("wf1", "step-1", "\"fresh\"".getBytes(), StepCodecs.JSON,
+                    "new-owner", taken));
+            assertFalse(store.markRetrying("wf1", "step-1", 1, "late", 0, "new-owner", taken));
+            assertEquals("\"fresh\"", store.getStep("wf1", "step-1").getOutput());
+        }
+        sqlite.close();
+        buffered.close();
+        journal.close();
+
+        // The lease check agrees with the stores: a lease is live through its last millisecond
+        try (LeaseManager leases = new LeaseManager(new InMemoryStore())) {
+            StepRecord leased = new StepRecord("wf1", "step-1", StepStatus.IN_PROGRESS.name(), null,
+                    StepCodecs.JSON, 0, "owner", 1000);
+            assertFalse(leases.isExpired(leased, 1000));
+            assertTrue(leases.isExpired(leased, 1001));
+        }
+    }
+
+    @Test
+    void testShardedStoreKeepsEachWorkflowOnOneShard(@TempDir Path dir) throws Exception {
+        try (ShardedStore store = new ShardedStore(dir, 4)) {
+            int[] perShard = new int[4];
+            List<SQLiteStore> shards = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                SQLiteStore shard = store.shardFor("wf-" + i);
+                if (!shards.contains(shard)) {
+                    shards.add(shard);
+                }
+                perShard[shards.indexOf(shard)]++;
+                store.enqueueWorkflow("wf-" + i, "count");
+            }
+            for (int count : perShard) {
+                assertTrue(count > 50, "shards are unbalanced: " + Arrays.toString(perShard));
+            }
+
+            DurableContext ctx = new DurableContext("wf-7", store);
+            assertEquals(42, ctx.step(() -> 42));
+            assertNotNull(store.shardFor("wf-7").getStep("wf-7", "step-1"));
+            assertEquals(400, store.claimWorkflows("worker", Long.MAX_VALUE, 1000).size());
+            ctx.close();
+        }
+
+        // Reopening maps every workflow back to the shard that holds it
+        try (ShardedStore reopened = new ShardedStore(dir, 4);
+             DurableContext replay = new DurableContext("wf-7", reopened)) {
+            assertEquals(42, replay.step(() -> 0));
+        }
+    }
+
+    @Test
+    void testShardFailureDoesNotLoseClaimsOnOtherShards(@TempDir Path dir) throws Exception {
+        SQLiteStore healthy = new SQLiteStore("jdbc:sqlite:" + dir.resolve("a.db"));
+        SQLiteStore broken = new SQLiteStore("jdbc:sqlite:" + dir.resolve("b.db"));
+        try (ShardedStore store = new ShardedStore(List.of(healthy, broken))) {
+            int onHealthy = 0;
+            for (int i = 0; i < 20; i++) {
+                store.enqueueWorkflow("wf-" + i, "count");
+                onHealthy += store.shardFor("wf-" + i) == healthy ? 1 : 0;
+            }
+            broken.close();
+
+            // Whichever shard the rotation starts on, the healthy shard's claims come back
+            assertEquals(onHealthy, store.claimWorkflows("worker", Long.MAX_VALUE, 100).size());
+            assertThrows(SQLException.class, () -> store.claimWorkflows("worker", Long.MAX_VALUE, 100));
+        }
+    }
+
+    @Test
+    void testWriteBehindStoreReadsItsOwnWritesAndFlushesOnClose(@TempDir Path dir) throws Exception {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (SQLiteStore relaxed = new SQLiteStore(connection, 16, 0, SQLiteStore.Durability.WAL_NORMAL);
+             Statement stmt = connection.createStatement()) {
+            assertEquals(1, stmt.executeQuery("PRAGMA synchronous").getInt(1));
+        }
         connection.close();
+
+        String url = "jdbc:sqlite:" + dir.resolve("async.db");
+        SQLiteStore store = new SQLiteStore(url, SQLiteStore.Durability.BUFFERED);
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            for (int i = 0; i < 100; i++) {
+                int n = i;
+                ctx.step(() -> n);
+            }
+        }
+        assertEquals(StepStatus.COMPLETED.name(), store.getStep("wf1", "step-100").getStatus());
+        store.insertInProgress("wf1", "last");
+        store.markCompleted("wf1", "last", "\"queued\"");
+        store.close();
+
+        try (SQLiteStore reopened = new SQLiteStore(url)) {
+            assertEquals(101, reopened.loadHistory("wf1").size());
+            assertEquals("\"queued\"", reopened.getStep("wf1", "last").getOutput());
+        }
+    }
+
+    @Test
+    void testLocalStepsWriteOnlyTheirOutcome() throws Exception {
+        AtomicInteger claims = new AtomicInteger();
+        InMemoryStore store = new InMemoryStore() {
+            @Override
+            public long claimStep(String workflowId, String stepId, String owner, long leaseExpiresAt,
+                                  StepRecord expected) {
+                claims.incrementAndGet();
+                return super.claimStep(workflowId, stepId, owner, leaseExpiresAt, expected);
+            }
+        };
+        AtomicInteger runs = new AtomicInteger();
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            assertEquals(1, ctx.localStep(Integer.class, runs::incrementAndGet));
+            assertEquals("remote", ctx.step(() -> "remote"));
+            assertThrows(StepFailedException.class, () -> ctx.localStep(() -> {
+                throw new IllegalArgumentException("bad input");
+            }));
+        }
+        assertEquals(1, claims.get());
+        assertEquals(StepStatus.COMPLETED.name(), store.getStep("wf1", "step-1").getStatus());
+        assertEquals(StepStatus.FAILED.name(), store.getStep("wf1", "step-3").getStatus());
+
+        try (DurableContext replay = new DurableContext("wf1", store)) {
+            assertEquals(1, replay.localStep(Integer.class, runs::incrementAndGet));
+            assertEquals("remote", replay.localStep(() -> "changed"));
+            assertThrows(StepFailedException.class, () -> replay.localStep(() -> "recovered"));
+        }
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void testTextKeyedStepsMigrateToTheCompactLayout(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("legacy.db");
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement stmt = connection.createStatement()) {
+            // Layout before interned keys
+            stmt.execute("CREATE TABLE steps (workflow_id TEXT, step_id TEXT, status TEXT, output BLOB, " +
+                         "updated_at INTEGER, codec INTEGER, owner TEXT, lease_expires_at INTEGER, attempts INTEGER, " +
+                         "last_error TEXT, version INTEGER NOT NULL DEFAULT 0, PRIMARY KEY (workflow_id, step_id))");
+            stmt.execute("INSERT INTO steps VALUES ('wf1', 'step-1', 'COMPLETED', '\"one\"', 1, 0, NULL, NULL, 0, NULL, 2)");
+            stmt.execute("INSERT INTO steps VALUES ('wf1', 'step-2', 'IN_PROGRESS', NULL, 2, 0, 'w', 99, 1, 'boom', 1)");
+            stmt.execute("INSERT INTO steps VALUES ('wf2', 'step-1', 'FAILED', 'x', 3, 0, NULL, NULL, 3, 'x', 4)");
+        }
+
+        try (SQLiteStore store = new SQLiteStore(url)) {
+            StepRecord retrying = store.getStep("wf1", "step-2");
+            assertEquals(StepStatus.IN_PROGRESS.name(), retrying.getStatus());
+            assertEquals("w", retrying.getOwner());
+            assertEquals(1, retrying.getAttempts());
+            assertEquals("boom", retrying.getLastError());
+            assertEquals(StepStatus.FAILED.name(), store.getStep("wf2", "step-1").getStatus());
+            try (DurableContext ctx = new DurableContext("wf1", store)) {
+                assertEquals("one", ctx.step(String.class, () -> "unused"));
+            }
+            assertEquals(2, store.getStep("wf1", "step-1").getVersion());
+            store.insertInProgress("wf3", "step-1");
+            assertEquals(1, store.loadHistory("wf3").size());
+        }
+
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement stmt = connection.createStatement()) {
+            assertEquals(SQLiteStore.COMPACT_SCHEMA, stmt.executeQuery("PRAGMA user_version").getInt(1));
+            assertEquals(3, stmt.executeQuery("SELECT COUNT(*) FROM workflow_keys").getInt(1));
+            assertTrue(stmt.executeQuery("SELECT sql FROM sqlite_master WHERE name='steps'")
+                    .getString(1).contains("WITHOUT ROWID"));
+        }
+    }
+
+    @Test
+    void testMigrationRunsWithAutocommitOffAndNamesUnknownStatuses(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("legacy.db");
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE steps (workflow_id TEXT, step_id TEXT, status TEXT, output BLOB, " +
+                         "updated_at INTEGER, PRIMARY KEY (workflow_id, step_id))");
+            stmt.execute("INSERT INTO steps VALUES ('wf1', 'step-1', 'COMPLETED', '\"one\"', 1)");
+            stmt.execute("INSERT INTO steps VALUES ('wf1', 'step-2', 'PAUSED', NULL, 2)");
+        }
+
+        try (Connection connection = DriverManager.getConnection(url)) {
+            connection.setAutoCommit(false);
+            SQLException e = assertThrows(SQLException.class, () -> new SQLiteStore(connection));
+            assertTrue(e.getMessage().contains("PAUSED"), e.getMessage());
+            assertFalse(connection.getAutoCommit());
+        }
+
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement stmt = connection.createStatement()) {
+            assertEquals(0, stmt.executeQuery("PRAGMA user_version").getInt(1));
+            stmt.execute("UPDATE steps SET status='FAILED' WHERE status='PAUSED'");
+            connection.setAutoCommit(false);
+            try (SQLiteStore store = new SQLiteStore(connection)) {
+                assertEquals(StepStatus.COMPLETED.name(), store.getStep("wf1", "step-1").getStatus());
+                assertEquals(StepStatus.FAILED.name(), store.getStep("wf1", "step-2").getStatus());
+            }
+        }
+    }
+
+    @Test
+    void testWorkflowKeyDeletedByAnotherStoreIsInternedAgain(@TempDir Path dir) throws Exception {
+        String url = "jdbc:sqlite:" + dir.resolve("shared.db");
+        try (SQLiteStore writer = new SQLiteStore(url); SQLiteStore retention = new SQLiteStore(url)) {
+            writer.insertInProgress("wf1", "step-1");
+            writer.markCompleted("wf1", "step-1", "\"a\"");
+            writer.startWorkflow("wf1", "count", "worker", Long.MAX_VALUE);
+            writer.updateWorkflow("wf1", WorkflowStatus.COMPLETED);
+
+            List<WorkflowRecord> finished = retention.finishedWorkflows(Long.MAX_VALUE, 10);
+            assertEquals(1, retention.deleteWorkflows(finished).workflows());
+
+            // The writer still remembers the deleted keys; reusing the IDs must not hit a NULL key
+            writer.batch(List.of(new StepRecord("wf1", "step-2", StepStatus.COMPLETED.name(), "\"b\"", 1L)));
+            writer.insertInProgress("wf2", "step-1");
+            writer.markCompleted("wf2", "step-1", "\"c\"");
+            writer.startWorkflow("wf2", "count", "worker", Long.MAX_VALUE);
+            writer.updateWorkflow("wf2", WorkflowStatus.COMPLETED);
+            retention.deleteWorkflows(retention.finishedWorkflows(Long.MAX_VALUE, 10));
+            writer.insertInProgress("wf2", "step-1");
+            assertEquals(StepStatus.IN_PROGRESS.name(), writer.getStep("wf2", "step-1").getStatus());
+            assertEquals(1, retention.loadHistory("wf1").size());
+        }
+    }
+
+    @Test
+    void testRetentionArchivesOldWorkflowsAndReclaimsSpace(@TempDir Path dir) throws Exception {
+        SQLiteStore store = new SQLiteStore("jdbc:sqlite:" + dir.resolve("retention.db"));
+        byte[] payload = ("\"" + "x".repeat(1000) + "\"").getBytes();
+        for (int w = 0; w < 250; w++) {
+            List<StepRecord> steps = new ArrayList<>();
+            for (int s = 1; s <= 20; s++) {
+                steps.add(new StepRecord("wf-" + w, "step-" + s, StepStatus.COMPLETED.name(), payload,
+                        StepCodecs.JSON, System.currentTimeMillis()));
+            }
+            store.batch(steps);
+            store.startWorkflow("wf-" + w, "count", "worker", Long.MAX_VALUE);
+            if (w > 0) {
+                store.updateWorkflow("wf-" + w, WorkflowStatus.COMPLETED);
+            }
+        }
+        // Finished strictly before the sweep's cutoff of now
+        eventually(() -> store.finishedWorkflows(System.currentTimeMillis(), 250).size() == 249);
+
+        Path archive = dir.resolve("archive");
+        try (RetentionManager retention = new RetentionManager(store, archive, Duration.ZERO)) {
+            retention.setBatchSize(100);
+            retention.setVacuumPages(100);
+            assertEquals(249, retention.sweep());
+            assertEquals(249 * 20, retention.deletedSteps());
+            assertEquals(100 * 4096, retention.vacuum());
+            retention.setVacuumPages(100_000);
+            assertTrue(retention.vacuum() > 0);
+            assertEquals(0, retention.vacuum());
+            assertTrue(retention.reclaimedBytes() > 249 * 20 * 1000 / 2, "reclaimed " + retention.reclaimedBytes());
+            assertTrue(retention.archivedBytes() > 0);
+        }
+
+        // Still running: kept
+        assertEquals(20, store.loadHistory("wf-0").size());
+        assertNull(store.getStep("wf-1", "step-1"));
+        assertNull(store.getWorkflow("wf-1"));
+
+        List<String> archived = new ArrayList<>();
+        try (Stream<Path> files = Files.list(archive)) {
+            for (Path file : files.sorted().toList()) {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+                    in.lines().forEach(archived::add);
+                }
+            }
+        }
+        assertEquals(249, archived.size());
+        assertTrue(archived.get(0).contains("\"steps\":[{\"stepId\":\"step-1\""));
+
+        // An instance restarted between selection and delete is kept and not counted
+        store.updateWorkflow("wf-0", WorkflowStatus.COMPLETED);
+        store.enqueueWorkflow("late", "count");
+        store.updateWorkflow("late", WorkflowStatus.COMPLETED);
+        List<WorkflowRecord> selected = store.finishedWorkflows(Long.MAX_VALUE, 10);
+        assertEquals(2, selected.size());
+        store.startWorkflow("wf-0", "count", "worker", Long.MAX_VALUE);
+        SQLiteStore.Deletion deletion = store.deleteWorkflows(selected);
+        assertEquals(1, deletion.workflows());
+        assertEquals(20, store.loadHistory("wf-0").size());
+        store.close();
+    }
+
+    @Test
+    void testContinueAsNewKeepsLoopHistoryBounded(@TempDir Path dir) throws Exception {
+        SQLiteStore store = new SQLiteStore("jdbc:sqlite:" + dir.resolve("loop.db"));
+        store.scheduleTimer(new TimerRecord("wf1", "stale", "loop", Long.MAX_VALUE - 1));
+        List<Integer> inputs = new CopyOnWriteArrayList<>();
+        AtomicInteger maxHistory = new AtomicInteger();
+        try (WorkflowRuntime runtime = new WorkflowRuntime(store)) {
+            runtime.register("loop", ctx -> {
+                Integer start = ctx.getInput(Integer.class);
+                inputs.add(start == null ? -1 : start);
+                int count = start == null ? 0 : start;
+                for (int i = 0; i < 10; i++) {
+                    int before = count;
+                    count = ctx.step(Integer.class, () -> before + 1);
+                }
+                maxHistory.accumulateAndGet(store.loadHistory("wf1").size(), Math::max);
+                if (count < 50) {
+                    ctx.continueAsNew(count);
+                }
+            });
+            runtime.start("loop", "wf1").get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(List.of(-1, 10, 20, 30, 40), inputs);
+        assertEquals(11, maxHistory.get());
+        Map<String, StepRecord> history = store.loadHistory("wf1");
+        assertEquals(11, history.size());
+        assertEquals("40", history.get(DurableContext.INPUT_STEP_ID).getOutput());
+        assertTrue(store.dueTimers(Long.MAX_VALUE, 10).isEmpty());
+        store.close();
+    }
+
+    @Test
+    void testContinueAsNewRefusesWhileAsyncStepsAreRunning(@TempDir Path dir) throws Exception {
+        SQLiteStore store = new SQLiteStore("jdbc:sqlite:" + dir.resolve("continue.db"));
+        CountDownLatch release = new CountDownLatch(1);
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            ctx.step(() -> 1);
+            CompletableFuture<Integer> pending = ctx.stepAsync(Integer.class, () -> {
+                release.await();
+                return 2;
+            });
+            assertThrows(IllegalStateException.class, () -> ctx.continueAsNew(1));
+            assertNotNull(store.getStep("wf1", "step-1"));
+
+            release.countDown();
+            assertEquals(2, pending.join());
+            assertThrows(WorkflowContinuedException.class, () -> ctx.continueAsNew(2));
+        }
+        assertEquals(Set.of(DurableContext.INPUT_STEP_ID), store.loadHistory("wf1").keySet());
+        store.close();
+    }
+
+    static final class Tally {
+        public int next;
+        public long sum;
+    }
+
+    @Test
+    void testSnapshotsSkipReplayOfEarlierSteps(@TempDir Path dir) throws Exception {
+        SQLiteStore store = new SQLiteStore("jdbc:sqlite:" + dir.resolve("snapshots.db"));
+        AtomicInteger executed = new AtomicInteger();
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            assertNull(ctx.restore(Tally.class));
+            Tally tally = new Tally();
+            // Crashes after step 550
+            while (tally.next < 550) {
+                int i = tally.next;
+                tally.sum += ctx.step(Integer.class, () -> {
+                    executed.incrementAndGet();
+                    return i;
+                });
+                tally.next++;
+                if (tally.next % 100 == 0) {
+                    ctx.snapshot(tally);
+                }
+            }
+        }
+        assertEquals(550, executed.get());
+        assertEquals(51, store.loadHistory("wf1").size());
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            assertThrows(IllegalStateException.class, () -> ctx.step(() -> "from the top"));
+        }
+        assertTrue(store.getStep("wf1", DurableContext.SNAPSHOT_STEP_ID).getOutput().contains("\"sequence\":500"));
+
+        AtomicInteger walked = new AtomicInteger();
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            Tally tally = ctx.restore(Tally.class);
+            assertEquals(500, tally.next);
+            while (tally.next < 1000) {
+                int i = tally.next;
+                walked.incrementAndGet();
+                tally.sum += ctx.step(Integer.class, () -> {
+                    executed.incrementAndGet();
+                    return i;
+                });
+                tally.next++;
+                if (tally.next % 100 == 0) {
+                    ctx.snapshot(tally);
+                }
+            }
+            assertEquals(999 * 1000 / 2, tally.sum);
+            assertThrows(IllegalStateException.class, () -> ctx.restore(Tally.class));
+        }
+        assertEquals(1000, executed.get());
+        assertEquals(500, walked.get());
+        assertNull(store.getStep("wf1", "step-501"));
+        assertEquals(1, store.loadHistory("wf1").size());
+        assertTrue(store.getStep("wf1", DurableContext.SNAPSHOT_STEP_ID).getOutput().contains("\"sequence\":1000"));
+        store.close();
+    }
+
+    @Test
+    void testSnapshotsKeepTimersAndRefuseToDropStepsInFlight(@TempDir Path dir) throws Exception {
+        SQLiteStore store = new SQLiteStore("jdbc:sqlite:" + dir.resolve("pending.db"));
+        store.scheduleTimer(new TimerRecord("wf1", "reminder", "tally", Long.MAX_VALUE - 1));
+        CountDownLatch release = new CountDownLatch(1);
+        try (DurableContext ctx = new DurableContext("wf1", store)) {
+            ctx.step(() -> 1);
+            ctx.snapshot(1);
+            assertEquals(1, store.dueTimers(Long.MAX_VALUE, 10).size());
+
+            CompletableFuture<Integer> pending = ctx.stepAsync(Integer.class, () -> {
+                release.await();
+                return 2;
+            });
+            assertThrows(IllegalStateException.class, () -> ctx.snapshot(2));
+            release.countDown();
+            assertEquals(2, pending.join());
+            ctx.snapshot(2);
+        }
+        assertEquals("reminder", store.dueTimers(Long.MAX_VALUE, 10).get(0).timerId());
+        assertEquals(1, store.loadHistory("wf1").size());
+        store.close();
     }
 }
@@ -0,0 +1,123 @@
+package engine;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class JournalStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testIndexIsRebuiltOnReopen() throws Exception {
+        JournalStore store = new JournalStore(dir);
+        store.insertInProgress("wf1", "step-1");
+        store.markCompleted("wf1", "step-1", "\"a\"");
+        store.insertInProgress("wf1", "step-2");
+        store.close();
+
+        JournalStore reopened = new JournalStore(dir);
+        assertEquals(StepStatus.COMPLETED.name(), reopened.getStep("wf1", "step-1").getStatus());
+        assertEquals("\"a\"", reopened.getStep("wf1", "step-1").getOutput());
+        assertEquals(StepStatus.IN_PROGRESS.name(), reopened.getStep("wf1", "step-2").getStatus());
+        assertNull(reopened.getStep("wf1", "step-2").getOutput());
+        assertEquals(2, reopened.loadHistory("wf1").size());
+        reopened.close();
+    }
+
+    @Test
+    void testSegmentsRollAndCompact() throws Exception {
+        JournalStore store = new JournalStore(dir, 256, JournalStore.FsyncPolicy.NEVER, 0);
+        for (int i = 0; i < 50; i++) {
+            store.insertInProgress("wf1", "step-" + i);
+            store.markCompleted("wf1", "step-" + i, String.valueOf(i));
+        }
+        assertTrue(segmentCount() > 1);
+
+        long reclaimed = store.compact();
+        assertTrue(reclaimed > 0);
+        store.close();
+
+        JournalStore reopened = new JournalStore(dir);
+        for (int i = 0; i < 50; i++) {
+            StepRecord record = reopened.getStep("wf1", "step-" + i);
+            assertEquals(StepStatus.COMPLETED.name(), record.getStatus());
+            assertEquals(String.valueOf(i), record.getOutput());
+        }
+        reopened.close();
+    }
+
+    @Test
+    void testBatchWritesAllRecords() throws Exception {
+        JournalStore store = new JournalStore(dir);
+        store.batch(List.of(
+                new StepRecord("wf1", "a", StepStatus.COMPLETED.name(), "1", 1L),
+                new StepRecord("wf2", "b", StepStatus.FAILED.name(), "boom", 2L)));
+        assertEquals("1", store.getStep("wf1", "a").getOutput());
+        assertEquals(StepStatus.FAILED.name(), store.getStep("wf2", "b").getStatus());
+        store.close();
+    }
+
+    @Test
+    void testReplacedHistorySurvivesReopenAndCompaction() throws Exception {
+        JournalStore store = new JournalStore(dir);
+        for (int i = 0; i < 5; i++) {
+            store.insertInProgress("wf1", "step-" + i);
+            store.markCompleted("wf1", "step-" + i, String.valueOf(i));
+        }
+        store.insertInProgress("wf2", "step-1");
+        store.replaceHistory("wf1", List.of(new StepRecord("wf1", "$input", StepStatus.COMPLETED.name(), "5", 1L)));
+        store.insertInProgress("wf1", "step-1");
+        assertEquals(2, store.loadHistory("wf1").size());
+        store.close();
+
+        JournalStore reopened = new JournalStore(dir);
+        assertEquals(2, reopened.loadHistory("wf1").size());
+        assertEquals(StepStatus.IN_PROGRESS.name(), reopened.getStep("wf1", "step-1").getStatus());
+        assertEquals(1, reopened.loadHistory("wf2").size());
+        reopened.compact();
+        reopened.close();
+
+        JournalStore compacted = new JournalStore(dir);
+        assertEquals("5", compacted.getStep("wf1", "$input").getOutput());
+        assertEquals(2, compacted.loadHistory("wf1").size());
+        compacted.close();
+    }
+
+    @Test
+    void testLeaseRenewalsDoNotGrowTheJournal() throws Exception {
+        JournalStore store = new JournalStore(dir, 256, JournalStore.FsyncPolicy.NEVER, 0);
+        store.insertInProgress("wf1", "step-1", "worker", 1_000);
+        long segments = segmentCount();
+        for (int i = 1; i <= 100; i++) {
+            store.renewLeases("worker", List.of(new StepKey("wf1", "step-1")), 1_000 + i);
+        }
+        assertEquals(segments, segmentCount());
+        assertEquals(1_100, store.getStep("wf1", "step-1").getLeaseExpiresAt());
+
+        store.renewLeases("someone-else", List.of(new StepKey("wf1", "step-1")), 5_000);
+        assertEquals(1_100, store.getStep("wf1", "step-1").getLeaseExpiresAt());
+        store.compact();
+        assertEquals(1_100, store.getStep("wf1", "step-1").getLeaseExpiresAt());
+
+        // A new record carries its own lease
+        long version = store.getStep("wf1", "step-1").getVersion();
+        assertTrue(store.markRetrying("wf1", "step-1", 1, "boom", 2_000, "worker", version));
+        assertEquals(2_000, store.getStep("wf1", "step-1").getLeaseExpiresAt());
+        store.close();
+    }
+
+    private long segmentCount() throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}